@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall.benchmarks;
+
+import com.github.pourquoipas.logcall.LogCall;
+import com.github.pourquoipas.logcall.LogLevel;
+
+/**
+ * The benchmarked methods: the same trivial body, unwoven and woven under each {@link LogCall} configuration,
+ * so that the difference between two benchmarks is the cost of the advice alone.
+ * The logger of this class is enabled at INFO and writes to a Null appender (see log4j2-benchmarks.xml).
+ */
+public class BenchmarkService {
+
+    /**
+     * Thrown by {@link #repeatedException(String, int)}; preallocated so that the benchmark does not measure its
+     * creation. Being always the same exception, every call after the first is a hit of the exception deduplication.
+     */
+    static final IllegalStateException FAILURE = new IllegalStateException("Benchmark failure");
+
+    public String unwoven(String name, int count) {
+        return name + count;
+    }
+
+    @LogCall(level = LogLevel.TRACE, logParameters = true, logReturn = true)
+    public String levelDisabled(String name, int count) {
+        return name + count;
+    }
+
+    @LogCall(level = LogLevel.INFO)
+    public String defaultMessage(String name, int count) {
+        return name + count;
+    }
+
+    @LogCall(level = LogLevel.INFO, logParameters = true)
+    public String logParameters(String name, int count) {
+        return name + count;
+    }
+
+    @LogCall(level = LogLevel.INFO, logReturn = true)
+    public String logReturn(String name, int count) {
+        return name + count;
+    }
+
+    @LogCall(level = LogLevel.INFO, customLog = "{className}.{methodName}({name}, {count}) -> {return}")
+    public String customLog(String name, int count) {
+        return name + count;
+    }
+
+    @LogCall(level = LogLevel.INFO, logStackTrace = true)
+    public String logStackTrace(String name, int count) {
+        return name + count;
+    }
+
+    @LogCall(level = LogLevel.INFO, logParameters = true, logException = true)
+    public String repeatedException(String name, int count) {
+        throw FAILURE;
+    }
+
+    /**
+     * Throws a new exception from one of three call sites chosen by {@code count}, so that the stack trace is
+     * captured on each call and differs from one call to the next.
+     */
+    @LogCall(level = LogLevel.INFO, logParameters = true, logException = true)
+    public String freshException(String name, int count) {
+        switch (count % 3) {
+            case 0:
+                return failFirst(name);
+            case 1:
+                return failSecond(name);
+            default:
+                return failThird(name);
+        }
+    }
+
+    private static String failFirst(String name) {
+        throw new IllegalStateException("Benchmark failure " + name);
+    }
+
+    private static String failSecond(String name) {
+        throw new IllegalStateException("Benchmark failure " + name);
+    }
+
+    private static String failThird(String name) {
+        throw new IllegalStateException("Benchmark failure " + name);
+    }
+}
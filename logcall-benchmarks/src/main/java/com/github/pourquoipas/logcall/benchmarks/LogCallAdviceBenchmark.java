@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of the advice woven by LogCall, one benchmark per configuration.
+ * {@link #unwoven()} is the baseline. The thread count is set by {@link LogCallBenchmarks}, or with {@code -t}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j2.configurationFile=log4j2-benchmarks.xml")
+public class LogCallAdviceBenchmark {
+
+    private final BenchmarkService service = new BenchmarkService();
+
+    private String name = "benchmark";
+    private int count = 42;
+
+    @Benchmark
+    public String unwoven() {
+        return service.unwoven(name, count);
+    }
+
+    @Benchmark
+    public String levelDisabled() {
+        return service.levelDisabled(name, count);
+    }
+
+    @Benchmark
+    public String defaultMessage() {
+        return service.defaultMessage(name, count);
+    }
+
+    @Benchmark
+    public String logParameters() {
+        return service.logParameters(name, count);
+    }
+
+    @Benchmark
+    public String logReturn() {
+        return service.logReturn(name, count);
+    }
+
+    @Benchmark
+    public String customLog() {
+        return service.customLog(name, count);
+    }
+
+    @Benchmark
+    public String logStackTrace() {
+        return service.logStackTrace(name, count);
+    }
+
+    /**
+     * The exception deduplication hit: the same exception is thrown on every call, so after the first one only its
+     * repeated id is logged.
+     */
+    @Benchmark
+    public Object repeatedException() {
+        try {
+            return service.repeatedException(name, count);
+        } catch (IllegalStateException e) {
+            return e;
+        }
+    }
+
+    /**
+     * A new exception from varying call sites, with the deduplication disabled so that every call captures and
+     * renders the full stack trace.
+     */
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Dlog4j2.configurationFile=log4j2-benchmarks.xml",
+            "-Dlogcall.exception.dedupWindow=0"})
+    public Object freshException(CallSites callSites) {
+        try {
+            return service.freshException(name, callSites.next++);
+        } catch (IllegalStateException e) {
+            return e;
+        }
+    }
+
+    /**
+     * Per thread counter choosing the call site of {@link #freshException(CallSites)}.
+     */
+    @State(Scope.Thread)
+    public static class CallSites {
+
+        int next;
+    }
+}
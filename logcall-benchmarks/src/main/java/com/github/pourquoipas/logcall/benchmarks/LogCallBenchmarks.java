@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+
+/**
+ * Runs {@link LogCallAdviceBenchmark} with 1, 4 and one thread per available processor, with the GC profiler
+ * so that the allocation rate ({@code gc.alloc.rate.norm}, bytes per operation) is reported next to the time.
+ * <p>
+ * Any JMH command line option is accepted and applied to every run, e.g. {@code -wi 2 -i 3} or a benchmark regex.
+ */
+public final class LogCallBenchmarks {
+
+    private LogCallBenchmarks() {
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        int[] threadCounts = Arrays.stream(new int[]{1, 4, Runtime.getRuntime().availableProcessors()})
+                .distinct()
+                .toArray();
+        for (int threads : threadCounts) {
+            OptionsBuilder builder = new OptionsBuilder();
+            builder.parent(commandLine);
+            if (commandLine.getIncludes().isEmpty()) {
+                builder.include(LogCallAdviceBenchmark.class.getName());
+            }
+            Options options = builder
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -14,6 +14,7 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Annotazione per loggare automaticamente le chiamate a un metodo.
@@ -73,4 +74,54 @@ public @interface LogCall {
      * @return La stringa del pattern di log.
      */
     String customLog() default "";
+
+    /**
+     * Frazione delle chiamate da loggare, tra 0.0 e 1.0.
+     * La decisione viene presa all'ingresso del metodo, prima di misurare il tempo o catturare i parametri.
+     * Default: 1.0, tutte le chiamate.
+     * @return La frazione delle chiamate da loggare.
+     */
+    double sampleRate() default 1.0;
+
+    /**
+     * Numero massimo di chiamate loggate per secondo per questo metodo.
+     * Le chiamate oltre il limite non vengono loggate.
+     * Default: 0, nessun limite.
+     * @return Il numero massimo di chiamate loggate per secondo.
+     */
+    int maxPerSecond() default 0;
+
+    /**
+     * Soglia di durata: se maggiore di 0, vengono loggate solo le chiamate che durano più di questo valore.
+     * Parametri e valore di ritorno vengono formattati solo dopo aver misurato la durata,
+     * quindi le chiamate veloci non pagano la formattazione.
+     * Default: 0, tutte le chiamate vengono loggate.
+     * @return La durata minima, nell'unità indicata da {@link #slowerThanUnit()}.
+     */
+    long slowerThan() default 0;
+
+    /**
+     * Unità di misura di {@link #slowerThan()}.
+     * Default: MILLISECONDS.
+     * @return L'unità di misura della soglia.
+     */
+    TimeUnit slowerThanUnit() default TimeUnit.MILLISECONDS;
+
+    /**
+     * Livello di log per le chiamate più lente di {@link #slowerThan()}, usato se più grave di {@link #level()}.
+     * Ignorato se slowerThan non è impostato.
+     * Default: TRACE, nessuna escalation.
+     * @return Il livello di log delle chiamate lente.
+     */
+    LogLevel slowLevel() default LogLevel.TRACE;
+
+    /**
+     * Modalità aggregata: le chiamate non vengono loggate singolarmente, la loro durata viene registrata
+     * in un istogramma e periodicamente viene loggata una riga di riepilogo per il metodo
+     * (numero di chiamate, min, percentili, max ed errori). Gli istogrammi sono esposti anche via JMX.
+     * Parametri, valore di ritorno e stack trace vengono ignorati.
+     * Default: false.
+     * @return true per aggregare le chiamate, altrimenti false.
+     */
+    boolean aggregate() default false;
 }
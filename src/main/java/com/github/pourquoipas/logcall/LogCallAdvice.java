@@ -11,135 +11,417 @@
 package com.github.pourquoipas.logcall;
 
 import net.bytebuddy.asm.Advice;
-import net.bytebuddy.implementation.bytecode.assign.Assigner;
-import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.status.StatusLogger;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.lang.reflect.Method;
-import java.lang.reflect.Parameter;
-import java.util.Arrays;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 /**
  * An Advice class that provides the full logging functionality.
  * This version correctly handles methods with a void return type and uses public
  * helper methods to prevent IllegalAccessError.
+ * <p>
+ * The enter advice checks the runtime overrides, the log level and the sampling of the method first, so a call that
+ * is not logged does not read the clock and does not capture anything. The exit advice captures the arguments and
+ * the return value into a {@link LogCallValues}, each with the setter of its exact type, so that primitives are
+ * neither boxed nor collected into an array. They are captured even when the annotation does not log them, so that
+ * {@link LogCallControl} can turn their logging on at runtime.
+ * <p>
+ * When {@link LogCallOverhead#ENABLED}, the advice also counts the calls and the time it spends on them.
  */
 public class LogCallAdvice {
 
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
+    /**
+     * Binds the {@link LogCallSite} of the instrumented method.
+     * The value is read from the static field the weaver adds to the woven class for each annotated method.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.PARAMETER)
+    public @interface Site {
+    }
+
+    /**
+     * Binds the {@link LogCallValues} of the call, or null if the method has neither arguments nor return value,
+     * or is aggregated.
+     * The weaver generates the capture code for the signature of each method, see {@link LogCallClassWeaver}.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.PARAMETER)
+    public @interface Captured {
+    }
+
     /**
      * This advice is executed at the beginning of the instrumented method.
      *
-     * @return The start time in milliseconds.
+     * @param site      The static metadata of the instrumented method.
+     * @param startTime Local shared with the exit advice, set to the start time in nanoseconds when logging is enabled.
+     * @return true if the call must be logged.
      */
     @Advice.OnMethodEnter
-    public static long enter() {
-        return System.currentTimeMillis();
+    public static boolean enter(
+            @Site LogCallSite site,
+            @Advice.Local("startTime") long startTime
+    ) {
+        long adviceStart = 0L;
+        if (LogCallOverhead.ENABLED) {
+            adviceStart = System.nanoTime();
+            site.getOverhead().recordInvocation();
+        }
+        if (site.isEnabled() && site.sample()) {
+            startTime = System.nanoTime();
+            if (LogCallOverhead.ENABLED) {
+                site.getOverhead().recordAdviceTime(startTime - adviceStart);
+            }
+            if (LogCallSpans.ENABLED) {
+                LogCallSpans.enter(site);
+            }
+            return true;
+        }
+        if (LogCallOverhead.ENABLED) {
+            site.getOverhead().recordSuppressed();
+            site.getOverhead().recordAdviceTime(System.nanoTime() - adviceStart);
+        }
+        return false;
     }
 
     /**
      * This advice is executed at the end of the instrumented method.
      *
-     * @param method       The original method that was instrumented.
-     * @param allArguments The arguments passed to the original method.
-     * @param startTime    The start time captured by the enter advice.
-     * @param result       The value returned by the method. Using Typing.DYNAMIC handles void methods correctly.
-     * @param exception    The exception thrown by the method, or null if it completed normally.
+     * @param site      The static metadata of the instrumented method.
+     * @param enabled   Whether the enter advice found logging enabled.
+     * @param startTime The start time captured by the enter advice.
+     * @param values    The captured arguments and return value; generated by the weaver, see {@link Captured}.
+     * @param exception The exception thrown by the method, or null if it completed normally.
      */
     @Advice.OnMethodExit(onThrowable = Throwable.class)
     public static void exit(
-            @Advice.Origin Method method,
-            @Advice.AllArguments Object[] allArguments,
-            @Advice.Enter long startTime,
-            @Advice.Return(typing = Assigner.Typing.DYNAMIC) Object result,
+            @Site LogCallSite site,
+            @Advice.Enter boolean enabled,
+            @Advice.Local("startTime") long startTime,
+            @Captured LogCallValues values,
             @Advice.Thrown Throwable exception
     ) {
-        LogCall logCall = method.getAnnotation(LogCall.class);
-        if (logCall == null) {
-            return;
+        if (enabled) {
+            long duration = System.nanoTime() - startTime;
+            // Calls faster than LogCall.slowerThan() return here, before anything is captured or rendered.
+            // Asynchronous calls are measured when their result completes instead, tracked calls are always popped.
+            if (duration > site.getSlowerThanNanos() || site.returnsCompletionStage() || LogCallSpans.ENABLED) {
+                onExit(site, startTime, duration, values, exception);
+            } else if (LogCallOverhead.ENABLED) {
+                site.getOverhead().recordSuppressed();
+                site.getOverhead().recordAdviceTime(System.nanoTime() - startTime - duration);
+            }
         }
+    }
 
-        Logger logger = LogManager.getLogger(method.getDeclaringClass());
-
-        if (isLoggerEnabled(logger, logCall.level())) {
-            long duration = System.currentTimeMillis() - startTime;
-            String logMessage = buildLogMessage(logCall, method, allArguments, result, exception, duration);
-            log(logger, logCall.level(), logMessage);
+    /**
+     * Logs, records or publishes a call, then releases its values. When the method returned a
+     * {@link CompletionStage}, the call is logged once the stage completes instead.
+     *
+     * @param values The captured values, or null if the method captures nothing.
+     */
+    public static void onExit(LogCallSite site, long startTime, long duration, LogCallValues values, Throwable exception) {
+        try {
+            LogCallSpan span = LogCallSpans.ENABLED ? LogCallSpans.exit(duration) : null;
+            if (site.returnsCompletionStage() && values != null && values.getResult() instanceof CompletionStage) {
+                logOnCompletion(site, startTime, values, span);
+            } else if (duration > site.getSlowerThanNanos()) {
+                dispatch(site, startTime, duration, values, exception, null, null, span);
+            } else if (LogCallOverhead.ENABLED) {
+                site.getOverhead().recordSuppressed();
+            }
+            if (LogCallSpans.TREE && span != null && span.getDepth() == 0 && duration > site.getSlowerThanNanos()) {
+                LogCallSpans.logTree(site, duration);
+            }
+        } finally {
+            if (values != null) {
+                values.release();
+            }
+            if (LogCallOverhead.ENABLED) {
+                // The method ended at startTime + duration: the rest is ours.
+                site.getOverhead().recordAdviceTime(System.nanoTime() - startTime - duration);
+            }
         }
     }
 
-    // --- Helper methods must be public to be accessible from the woven class ---
+    /**
+     * Logs a call when the stage it returned completes, with the end-to-end duration, the value or exception the
+     * stage completed with, and the thread that completed it. The caller is never blocked.
+     */
+    private static void logOnCompletion(LogCallSite site, long startTime, LogCallValues values, LogCallSpan span) {
+        // The values and the span of the calling thread are reused by its next call: keep a copy until the stage completes.
+        LogCallValues copy = new LogCallValues();
+        copy.copyFrom(values);
+        LogCallSpan spanCopy = span == null ? null : new LogCallSpan().copyFrom(span);
+        // The call stack is only meaningful in the calling thread.
+        StackTraceElement[] callStack = site.isLogStackTrace() ? LogCallStackCapture.capture() : null;
+        ((CompletionStage<?>) values.getResult()).whenComplete((result, failure) -> {
+            try {
+                long duration = System.nanoTime() - startTime;
+                if (duration > site.getSlowerThanNanos()) {
+                    copy.setObject(copy.getArgumentCount(), failure == null ? result : null);
+                    dispatch(site, startTime, duration, copy, unwrap(failure), callStack, Thread.currentThread(), spanCopy);
+                } else if (LogCallOverhead.ENABLED) {
+                    site.getOverhead().recordSuppressed();
+                }
+                if (LogCallOverhead.ENABLED) {
+                    site.getOverhead().recordAdviceTime(System.nanoTime() - startTime - duration);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error("LogCall: could not log the completion of {}", site.getMethodName(), e);
+            }
+        });
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        // Stages derived from a failed stage complete with a CompletionException wrapping the original exception.
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
 
-    public static String buildLogMessage(LogCall logCall, Method method, Object[] args, Object result, Throwable exception, long duration) {
-        if (logCall.customLog() != null && !logCall.customLog().isEmpty()) {
-            return formatCustomLog(logCall.customLog(), method, args, result, exception);
+    /**
+     * Hands a call to the histogram, the binary log, the ring buffer or Log4j.
+     *
+     * @param callStack The call stack captured by the caller, or null to capture it here when the method logs it.
+     * @param thread    The thread that completed an asynchronous call, or null for a call logged on its own thread.
+     * @param span      The span of the call when calls are tracked, otherwise null.
+     */
+    private static void dispatch(LogCallSite site, long startTime, long duration, LogCallValues values, Throwable exception,
+                                 StackTraceElement[] callStack, Thread thread, LogCallSpan span) {
+        if (LogCallOverhead.ENABLED) {
+            site.getOverhead().recordEmitted();
+        }
+        LogCallHistogram histogram = site.getHistogram();
+        if (histogram != null) {
+            histogram.record(duration, exception != null);
+            return;
+        }
+        LogCallBinaryLog binaryLog = LogCallBinaryLog.INSTANCE;
+        if (binaryLog != null) {
+            // Written as is: no message, no call stack, no Log4j.
+            binaryLog.write(site, startTime, duration, values, exception);
+            return;
+        }
+        if (callStack == null && thread == null && site.isLogStackTrace()) {
+            // The call stack must be captured here: the message may be rendered further down inside Log4j.
+            callStack = LogCallStackCapture.capture();
+        }
+        LogCallRingBuffer ringBuffer = LogCallRingBuffer.INSTANCE;
+        if (ringBuffer != null) {
+            ringBuffer.publish(site, startTime, startTime + duration, values, exception, callStack, span);
+            return;
         }
+        logCall(site, duration, values, exception, callStack, thread, span);
+    }
 
+    /**
+     * Logs a call through a {@link LogCallMessage}, or a {@link LogCallMapMessage} in structured mode.
+     * Identical calls are coalesced when {@link LogCallCoalescer} is configured.
+     *
+     * @param thread The thread that made the call when it is logged from another thread, or the thread that completed
+     *               an asynchronous call, otherwise null.
+     * @param span   The span of the call when calls are tracked, otherwise null.
+     */
+    public static void logCall(LogCallSite site, long duration, LogCallValues values, Throwable exception, StackTraceElement[] callStack, Thread thread,
+                               LogCallSpan span) {
+        if (LogCallCoalescer.INSTANCE.coalesce(site, values, exception, duration)) {
+            return;
+        }
+        long exceptionFingerprint = 0;
+        long exceptionOccurrence = 0;
+        if (exception != null && site.isLogException()) {
+            // Counted here, once per call, whatever the number of times the message is rendered.
+            exceptionFingerprint = LogCallExceptionCache.fingerprint(exception);
+            exceptionOccurrence = LogCallExceptionCache.INSTANCE.record(exceptionFingerprint);
+        }
+        if (LogCallMapMessage.ENABLED) {
+            LogCallMapMessage message = LogCallMapMessage.of(site, values, exception, duration, callStack, thread,
+                    exceptionFingerprint, exceptionOccurrence, span);
+            // Repeated exceptions are identified by their id only, like in text messages.
+            boolean attach = exception != null && site.isLogException() && exceptionOccurrence <= 1;
+            log(site.getLogger(), site.getLevel(), message, attach ? exception : null);
+            return;
+        }
+        LogCallMessage message = LogCallMessage.acquire(site, values, exception, duration, callStack, thread,
+                exceptionFingerprint, exceptionOccurrence, span);
+        try {
+            log(site.getLogger(), site.getLevel(), message);
+        } finally {
+            message.release();
+        }
+    }
+
+    public static String buildLogMessage(LogCallSite site, Object[] args, Object result, Throwable exception, long duration) {
         StringBuilder logMessage = new StringBuilder();
-        logMessage.append("Method '").append(method.getName()).append("'");
+        appendLogMessage(logMessage, site, LogCallValues.of(args, result), exception, duration, site.isLogStackTrace() ? LogCallStackCapture.capture() : null, null, 0, 0, null);
+        return logMessage.toString();
+    }
 
-        if (logCall.logParameters() && method.getParameterCount() > 0) {
-            logMessage.append(" | Params: [");
-            logMessage.append(Arrays.stream(args).map(arg -> Objects.toString(arg, "null")).collect(Collectors.joining(", ")));
-            logMessage.append("]");
+    /**
+     * Renders the message of a call.
+     *
+     * @param exceptionFingerprint The fingerprint of the exception, see {@link LogCallExceptionCache}.
+     * @param exceptionOccurrence  The occurrence of the exception in the deduplication window, 1 for the first one,
+     *                             or 0 to log the stack trace in full without an id.
+     * @param span                 The span of the call when calls are tracked, otherwise null.
+     */
+    public static void appendLogMessage(StringBuilder logMessage, LogCallSite site, LogCallValues values, Throwable exception, long duration,
+                                        StackTraceElement[] callStack, Thread thread, long exceptionFingerprint, long exceptionOccurrence,
+                                        LogCallSpan span) {
+        if (site.getTemplate() != null) {
+            site.getTemplate().appendTo(logMessage, site.getClassName(), site.getMethodName(), values, exception);
+            return;
         }
 
-        if (exception != null) {
-            logMessage.append(" | Threw Exception: ").append(exception.getClass().getSimpleName());
-        } else if (logCall.logReturn() && method.getReturnType() != void.class) {
-            logMessage.append(" | Return: ").append(Objects.toString(result, "null"));
-        }
+        int start = logMessage.length();
+        logMessage.append("Method '").append(site.getMethodName()).append("'");
 
-        logMessage.append(" | Duration: ").append(duration).append("ms");
+        LogCallOutput output = null;
+        try {
+            if (site.isLogParameters() && site.getParameterCount() > 0 && values != null) {
+                output = LogCallOutput.acquire(logMessage, start);
+                logMessage.append(" | Params: [");
+                for (int i = 0; i < values.getArgumentCount(); i++) {
+                    if (i > 0) {
+                        output.append(", ");
+                    }
+                    values.appendArgument(output, i);
+                }
+                logMessage.append("]");
+            }
 
-        if (logCall.logStackTrace()) {
-            logMessage.append("\nCall Stack Trace:\n").append(getCleanStackTrace(new Throwable()));
+            if (exception != null) {
+                logMessage.append(" | Threw Exception: ").append(exception.getClass().getSimpleName());
+            } else if (site.isLogReturn() && site.hasReturnValue() && values != null) {
+                if (output == null) {
+                    output = LogCallOutput.acquire(logMessage, start);
+                }
+                logMessage.append(" | Return: ");
+                values.appendResult(output);
+            }
+        } finally {
+            if (output != null) {
+                output.release();
+            }
         }
 
-        if (exception != null && logCall.logException()) {
-            logMessage.append("\nException Stack Trace:\n").append(getCleanStackTrace(exception));
-        }
-        return logMessage.toString();
-    }
+        appendDuration(logMessage.append(" | Duration: "), duration);
 
-    public static String formatCustomLog(String pattern, Method method, Object[] args, Object result, Throwable exception) {
-        String log = pattern.replace("{methodName}", method.getName())
-                .replace("{className}", method.getDeclaringClass().getSimpleName());
+        if (thread != null) {
+            logMessage.append(" | Thread: ").append(thread.getName());
+        }
 
-        if (log.contains("{params}")) {
-            log = log.replace("{params}", Arrays.stream(args).map(arg -> Objects.toString(arg, "null")).collect(Collectors.joining(", ")));
+        if (span != null) {
+            LogCallSpan.appendId(logMessage.append(" | Span: "), span.getSpanId());
+            if (span.getParentId() != 0) {
+                LogCallSpan.appendId(logMessage.append(" | Parent: "), span.getParentId());
+            }
+            logMessage.append(" | Depth: ").append(span.getDepth());
+            appendDuration(logMessage.append(" | Self: "), span.getSelfNanos());
         }
 
-        // --- Logic to replace parameters by name and index ---
-        Parameter[] parameters = method.getParameters();
-        for (int i = 0; i < args.length; i++) {
-            // Replace by index, e.g., {param[0]}
-            log = log.replace("{param[" + i + "]}", Objects.toString(args[i], "null"));
+        if (callStack != null) {
+            logMessage.append("\nCall Stack Trace:");
+            for (StackTraceElement frame : callStack) {
+                logMessage.append("\n\tat ").append(frame);
+            }
+        }
 
-            // Replace by name, e.g., {p1}. This requires the -parameters flag during compilation.
-            if (i < parameters.length) {
-                log = log.replace("{" + parameters[i].getName() + "}", Objects.toString(args[i], "null"));
+        if (exception != null && site.isLogException()) {
+            logMessage.append("\nException Stack Trace:");
+            if (exceptionOccurrence > 0) {
+                LogCallExceptionCache.appendId(logMessage.append(" #"), exceptionFingerprint);
+            }
+            if (exceptionOccurrence > 1) {
+                logMessage.append(" (occurrence ").append(exceptionOccurrence).append(", logged in full at the first one) ")
+                        .append(exception);
+            } else {
+                appendStackTrace(logMessage.append('\n'), exception);
             }
         }
+    }
 
-        if (log.contains("{return}")) {
-            log = log.replace("{return}", Objects.toString(result, "null"));
+    /**
+     * Appends a duration in nanoseconds as milliseconds with three decimals, without allocating.
+     */
+    public static StringBuilder appendDuration(StringBuilder sb, long durationNanos) {
+        long micros = durationNanos / 1_000;
+        sb.append(micros / 1_000).append('.');
+        long fraction = micros % 1_000;
+        if (fraction < 100) {
+            sb.append('0');
         }
-        if (log.contains("{exception}") && exception != null) {
-            log = log.replace("{exception}", getCleanStackTrace(exception));
+        if (fraction < 10) {
+            sb.append('0');
         }
-        return log;
+        return sb.append(fraction).append("ms");
     }
 
     public static String getCleanStackTrace(Throwable throwable) {
-        StringWriter sw = new StringWriter();
-        throwable.printStackTrace(new PrintWriter(sw));
-        return Arrays.stream(sw.toString().split("\r?\n"))
-                .filter(line -> !line.contains("com.github.pourquoipas.logcall.LogCallAdvice"))
-                .collect(Collectors.joining("\n"));
+        return appendStackTrace(new StringBuilder(), throwable).toString();
+    }
+
+    /**
+     * Appends a stack trace in the format of {@link Throwable#printStackTrace()}, causes and suppressed exceptions
+     * included, without the frames of LogCall itself.
+     */
+    public static StringBuilder appendStackTrace(StringBuilder sb, Throwable throwable) {
+        sb.append(throwable);
+        appendFrames(sb, throwable, null, "", Collections.newSetFromMap(new IdentityHashMap<>()));
+        return sb;
+    }
+
+    private static void appendFrames(StringBuilder sb, Throwable throwable, StackTraceElement[] enclosingTrace, String prefix, Set<Throwable> seen) {
+        seen.add(throwable);
+        StackTraceElement[] trace = throwable.getStackTrace();
+        // Like printStackTrace, elide the frames shared with the enclosing trace.
+        int inCommon = 0;
+        if (enclosingTrace != null) {
+            for (int m = trace.length - 1, n = enclosingTrace.length - 1; m >= 0 && n >= 0 && trace[m].equals(enclosingTrace[n]); m--, n--) {
+                inCommon++;
+            }
+        }
+        for (int i = 0; i < trace.length - inCommon; i++) {
+            if (!isLogCallFrame(trace[i].getClassName())) {
+                sb.append('\n').append(prefix).append("\tat ").append(trace[i]);
+            }
+        }
+        if (inCommon > 0) {
+            sb.append('\n').append(prefix).append("\t... ").append(inCommon).append(" more");
+        }
+        for (Throwable suppressed : throwable.getSuppressed()) {
+            appendEnclosed(sb, suppressed, trace, prefix + "\t", "Suppressed: ", seen);
+        }
+        if (throwable.getCause() != null) {
+            appendEnclosed(sb, throwable.getCause(), trace, prefix, "Caused by: ", seen);
+        }
+    }
+
+    private static void appendEnclosed(StringBuilder sb, Throwable throwable, StackTraceElement[] enclosingTrace, String prefix, String caption, Set<Throwable> seen) {
+        sb.append('\n').append(prefix).append(caption);
+        if (seen.contains(throwable)) {
+            sb.append("[CIRCULAR REFERENCE: ").append(throwable).append(']');
+            return;
+        }
+        sb.append(throwable);
+        appendFrames(sb, throwable, enclosingTrace, prefix, seen);
+    }
+
+    /**
+     * Tells whether a stack frame belongs to the logging code rather than to the application.
+     */
+    static boolean isLogCallFrame(String className) {
+        return className.startsWith(LogCallAdvice.class.getName()) || className.equals(LogCallStackCapture.class.getName());
     }
 
     public static void log(Logger logger, LogLevel level, String message) {
@@ -152,6 +434,26 @@ public class LogCallAdvice {
         }
     }
 
+    public static void log(Logger logger, LogLevel level, Message message) {
+        switch (level) {
+            case TRACE: logger.trace(message); break;
+            case DEBUG: logger.debug(message); break;
+            case INFO:  logger.info(message);  break;
+            case WARN:  logger.warn(message);  break;
+            case ERROR: logger.error(message); break;
+        }
+    }
+
+    public static void log(Logger logger, LogLevel level, Message message, Throwable throwable) {
+        switch (level) {
+            case TRACE: logger.trace(message, throwable); break;
+            case DEBUG: logger.debug(message, throwable); break;
+            case INFO:  logger.info(message, throwable);  break;
+            case WARN:  logger.warn(message, throwable);  break;
+            case ERROR: logger.error(message, throwable); break;
+        }
+    }
+
     public static boolean isLoggerEnabled(Logger logger, LogLevel level) {
         switch (level) {
             case TRACE: return logger.isTraceEnabled();
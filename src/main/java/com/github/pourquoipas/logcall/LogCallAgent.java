@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.dynamic.scaffold.TypeValidation;
+import net.bytebuddy.matcher.ElementMatchers;
+import net.bytebuddy.utility.JavaModule;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.ProtectionDomain;
+
+/**
+ * A Java agent that weaves the methods annotated with {@link LogCall} when their class is loaded,
+ * for code that cannot go through {@link LogCallClassWeaver} at build time, e.g. prebuilt jars.
+ * <p>
+ * Start the JVM with {@code -javaagent:logcall.jar}; ByteBuddy and Log4j must be on the class path.
+ * The agent can also be attached to a running JVM, in which case only the classes loaded afterwards are woven.
+ * <p>
+ * Every loaded class is first checked with {@link LogCallClassWeaver#mayUseLogCall(byte[])}: only the classes whose
+ * constant pool references the annotation are handed to ByteBuddy. The woven bytecode is cached on disk, keyed by
+ * the hash of the original class file, so that a restart loads it without weaving again. The cache directory is set
+ * with the {@code logcall.agent.cacheDir} system property (default {@code logcall-agent} in the temporary
+ * directory); an empty value disables the cache.
+ * <p>
+ * The classes selected with the {@code logcall.startup.packages} system property are woven for startup profiling,
+ * see {@link LogCallStartup}.
+ */
+public final class LogCallAgent implements ClassFileTransformer {
+
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
+    /**
+     * A cache entry without content records a class that the agent leaves unchanged.
+     */
+    private static final byte[] UNCHANGED = new byte[0];
+
+    private static boolean installed;
+
+    private final ClassFileTransformer weaver;
+    private final Path cacheDirectory;
+
+    LogCallAgent(Path cacheDirectory) {
+        this.weaver = new AgentBuilder.Default(new ByteBuddy().with(TypeValidation.DISABLED))
+                .with(AgentBuilder.TypeStrategy.Default.REDEFINE)
+                .with(new AgentBuilder.Listener.Adapter() {
+                    @Override
+                    public void onError(String typeName, ClassLoader classLoader, JavaModule module, boolean loaded, Throwable throwable) {
+                        LOGGER.error("LogCall: could not weave {}", typeName, throwable);
+                    }
+                })
+                .ignore(ElementMatchers.nameStartsWith("net.bytebuddy."))
+                .type(LogCallClassWeaver.isCandidate())
+                .transform(LogCallAgent::weave)
+                .makeRaw();
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public static void premain(String arguments, Instrumentation instrumentation) {
+        install(instrumentation);
+    }
+
+    public static void agentmain(String arguments, Instrumentation instrumentation) {
+        install(instrumentation);
+    }
+
+    private static synchronized void install(Instrumentation instrumentation) {
+        if (installed) {
+            return;
+        }
+        installed = true;
+        String cacheDir = System.getProperty("logcall.agent.cacheDir",
+                Paths.get(System.getProperty("java.io.tmpdir"), "logcall-agent").toString());
+        Path cacheDirectory = null;
+        if (!cacheDir.isEmpty()) {
+            // Woven classes reference the library, so each version of the library gets its own cache.
+            try {
+                cacheDirectory = Paths.get(cacheDir, LogCallClassWeaver.libraryHash());
+            } catch (IOException e) {
+                LOGGER.warn("LogCall: could not hash the library, the agent cache is disabled", e);
+            }
+        }
+        // Fields are added to the woven classes, which a retransformation does not allow.
+        instrumentation.addTransformer(new LogCallAgent(cacheDirectory), false);
+    }
+
+    private static DynamicType.Builder<?> weave(DynamicType.Builder<?> builder, TypeDescription typeDescription,
+                                                ClassLoader classLoader, JavaModule module, ProtectionDomain protectionDomain) {
+        return LogCallClassWeaver.weaveAndMark(builder, typeDescription);
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+        // Early reject: most classes never reference the annotation and are not even parsed.
+        if (classBeingRedefined != null || !LogCallClassWeaver.mayUseLogCall(classfileBuffer)
+                && (className == null || !LogCallClassWeaver.isStartupClass(className.replace('/', '.')))) {
+            return null;
+        }
+        Path cacheFile = cacheDirectory == null ? null
+                : cacheDirectory.resolve(LogCallClassWeaver.hash(classfileBuffer) + ".class");
+        byte[] cached = read(cacheFile);
+        if (cached != null) {
+            return cached.length == 0 ? null : cached;
+        }
+        byte[] woven = weaver.transform(loader, className, null, protectionDomain, classfileBuffer);
+        write(cacheFile, woven == null ? UNCHANGED : woven);
+        return woven;
+    }
+
+    private static byte[] read(Path cacheFile) {
+        if (cacheFile == null || !Files.isRegularFile(cacheFile)) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(cacheFile);
+        } catch (IOException e) {
+            LOGGER.warn("LogCall: could not read the cached class {}", cacheFile, e);
+            return null;
+        }
+    }
+
+    private static void write(Path cacheFile, byte[] bytes) {
+        if (cacheFile == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            // Several JVMs may share the cache: write aside, then move, so that no one reads a partial entry.
+            Path temporaryFile = Files.createTempFile(cacheFile.getParent(), "logcall", ".tmp");
+            Files.write(temporaryFile, bytes);
+            try {
+                Files.move(temporaryFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("LogCall: could not cache the woven class {}", cacheFile, e);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically logs one summary line per method annotated with {@link LogCall#aggregate()}.
+ * <p>
+ * Each aggregated method records its durations in a {@link LogCallHistogram}; every interval a single daemon
+ * thread logs the count, min, p50, p90, p99, p99.9, max and error count of the interval, with the logger and level
+ * of the method, and starts a new interval. Methods without calls in the interval are not logged.
+ * The interval is set in seconds with the {@code logcall.aggregate.interval} system property (default 60).
+ * A report triggered with {@link #report()} covers the time since the previous report instead, and says so.
+ * The histograms are registered as MBeans under {@code com.github.pourquoipas.logcall:type=Histogram}.
+ * Methods are held weakly: the report and the MBean of a method end when its class is unloaded.
+ */
+public final class LogCallAggregator {
+
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
+    private static final long INTERVAL_SECONDS = Math.max(1, Long.getLong("logcall.aggregate.interval", 60));
+
+    private static final List<LogCallSiteReference> SITES = new CopyOnWriteArrayList<>();
+
+    private static ScheduledExecutorService scheduler;
+
+    private static long lastReportNanos = System.nanoTime();
+
+    private LogCallAggregator() {
+    }
+
+    /**
+     * Adds an aggregated method to the periodic report, starting the report thread on first use.
+     */
+    static synchronized void register(LogCallSite site) {
+        LogCallSiteReference.expunge(SITES);
+        SITES.add(LogCallSiteReference.registerMBean(site, "Histogram", site.getHistogram()));
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "LogCall-Aggregator");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleAtFixedRate(() -> report(true), INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Logs the summary of every aggregated method and starts a new interval.
+     * Called by the report thread; can also be called to flush the current interval, e.g. on shutdown.
+     * The summary lines then give the time since the previous report rather than the configured interval.
+     */
+    public static void report() {
+        report(false);
+    }
+
+    private static synchronized void report(boolean scheduled) {
+        long now = System.nanoTime();
+        long sinceLastReport = now - lastReportNanos;
+        lastReportNanos = now;
+        LogCallSiteReference.expunge(SITES);
+        StringBuilder line = new StringBuilder();
+        for (LogCallSiteReference reference : SITES) {
+            LogCallSite site = reference.get();
+            if (site == null) {
+                continue;
+            }
+            try {
+                LogCallHistogram.Snapshot snapshot = site.getHistogram().snapshotAndReset();
+                if (snapshot.getCount() == 0) {
+                    continue;
+                }
+                line.setLength(0);
+                line.append("Method '").append(site.getMethodName()).append("'")
+                        .append(" | Calls: ").append(snapshot.getCount())
+                        .append(" | Errors: ").append(snapshot.getErrorCount());
+                LogCallAdvice.appendDuration(line.append(" | Min: "), snapshot.getMin());
+                LogCallAdvice.appendDuration(line.append(" | P50: "), snapshot.getValueAtPercentile(50));
+                LogCallAdvice.appendDuration(line.append(" | P90: "), snapshot.getValueAtPercentile(90));
+                LogCallAdvice.appendDuration(line.append(" | P99: "), snapshot.getValueAtPercentile(99));
+                LogCallAdvice.appendDuration(line.append(" | P99.9: "), snapshot.getValueAtPercentile(99.9));
+                LogCallAdvice.appendDuration(line.append(" | Max: "), snapshot.getMax());
+                if (scheduled) {
+                    line.append(" | Interval: ").append(INTERVAL_SECONDS).append("s");
+                } else {
+                    LogCallAdvice.appendDuration(line.append(" | Since last report: "), sinceLastReport);
+                }
+                LogCallAdvice.log(site.getLogger(), site.getLevel(), line.toString());
+            } catch (RuntimeException e) {
+                LOGGER.error("LogCall: could not report the calls of {}", site.getMethodName(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Turns the segments written by {@link LogCallBinaryLog} back into readable lines or CSV.
+ * <p>
+ * {@code java -cp logcall.jar com.github.pourquoipas.logcall.LogCallBinaryDecoder [--csv] <segment or directory>...}
+ * <p>
+ * The segments of a directory are decoded in the order they were written: by process, thread, then sequence number,
+ * compared as numbers. Each line has the timestamp, level and thread
+ * of the call, the class, then the message in the format of the default Log4j output, e.g.
+ * {@code 2025-01-01T10:00:00.000001Z INFO [main] com.example.Service - Method 'find' | Params: [42] | Return: Item | Duration: 0.015ms}.
+ */
+public final class LogCallBinaryDecoder {
+
+    static final String CSV_HEADER = "timestamp,level,thread,class,method,duration_nanos,parameters,return,exception";
+
+    private LogCallBinaryDecoder() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean csv = false;
+        List<Path> segments = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--csv")) {
+                csv = true;
+                continue;
+            }
+            Path path = Paths.get(arg);
+            if (Files.isDirectory(path)) {
+                segments.addAll(segments(path));
+            } else if (Files.isRegularFile(path)) {
+                segments.add(path);
+            } else {
+                System.err.println("Error: " + arg + " is not a segment file or a directory.");
+                System.exit(1);
+            }
+        }
+        if (segments.isEmpty()) {
+            System.err.println("Usage: java LogCallBinaryDecoder [--csv] <segment_file_or_directory>...");
+            System.exit(1);
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        if (csv) {
+            out.append(CSV_HEADER).append('\n');
+        }
+        for (Path segment : segments) {
+            decode(segment, csv, out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Decodes the segments of a directory in the order they were written, one line per call.
+     *
+     * @param csv true to write CSV rows, without header, instead of log lines.
+     */
+    static void decodeDirectory(Path directory, boolean csv, Appendable out) throws IOException {
+        for (Path segment : segments(directory)) {
+            decode(segment, csv, out);
+        }
+    }
+
+    /**
+     * Lists the segments of a directory in the order they were written. The names are
+     * {@code logcall-<pid>-<thread id>-<sequence>.lcb}: the numbers are compared as numbers, so that the 10th segment
+     * comes after the 9th.
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(LogCallBinaryLog.SUFFIX))
+                    .sorted(Comparator.comparing((Path file) -> numberAt(file, 1))
+                            .thenComparing(file -> numberAt(file, 2))
+                            .thenComparing(file -> numberAt(file, 3))
+                            .thenComparing(Comparator.naturalOrder()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return The number at the given position among the dash-separated parts of a segment name, or -1 if it has none.
+     */
+    private static long numberAt(Path segment, int position) {
+        String name = segment.getFileName().toString();
+        String[] parts = name.substring(0, name.length() - LogCallBinaryLog.SUFFIX.length()).split("-");
+        try {
+            return position < parts.length ? Long.parseLong(parts[position]) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Decodes one segment, one line per call.
+     *
+     * @param csv true to write CSV rows, without header, instead of log lines.
+     */
+    static void decode(Path segment, boolean csv, Appendable out) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+            if (in.readInt() != LogCallBinaryLog.MAGIC || in.readShort() != LogCallBinaryLog.VERSION) {
+                throw new IOException("Not a LogCall binary log segment: " + segment);
+            }
+            long epochNanos = in.readLong();
+            long nanoTime = in.readLong();
+            in.readLong(); // thread id, already in the file name
+            String thread = in.readUTF();
+
+            Map<Integer, Definition> definitions = new HashMap<>();
+            StringBuilder line = new StringBuilder();
+            List<String> parameters = new ArrayList<>();
+            while (true) {
+                int type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (type == LogCallBinaryLog.END) {
+                    return;
+                }
+                if (type == LogCallBinaryLog.DEFINE) {
+                    Definition definition = new Definition(in);
+                    definitions.put(definition.id, definition);
+                    continue;
+                }
+                if (type != LogCallBinaryLog.CALL) {
+                    throw new IOException("Unknown record type " + type + " in " + segment);
+                }
+                Definition definition = definitions.get(in.readInt());
+                if (definition == null) {
+                    throw new IOException("Call of an undefined method in " + segment);
+                }
+                Instant timestamp = Instant.ofEpochSecond(0, epochNanos + in.readLong() - nanoTime);
+                long duration = in.readLong();
+                int flags = in.readUnsignedByte();
+                int argumentCount = in.readUnsignedByte();
+                parameters.clear();
+                for (int i = 0; i < argumentCount; i++) {
+                    parameters.add(readValue(in));
+                }
+                String result = (flags & LogCallBinaryLog.HAS_RESULT) != 0 ? readValue(in) : null;
+                String exception = null;
+                if ((flags & LogCallBinaryLog.THREW) != 0) {
+                    exception = in.readUTF();
+                    String message = in.readUTF();
+                    if (!message.isEmpty()) {
+                        exception += ": " + message;
+                    }
+                }
+
+                line.setLength(0);
+                if (csv) {
+                    appendCsv(line, timestamp.toString()).append(',');
+                    appendCsv(line, definition.level.name()).append(',');
+                    appendCsv(line, thread).append(',');
+                    appendCsv(line, definition.className).append(',');
+                    appendCsv(line, definition.methodName).append(',').append(duration).append(',');
+                    appendCsv(line, argumentCount > 0 ? String.join(", ", parameters) : "").append(',');
+                    appendCsv(line, result == null ? "" : result).append(',');
+                    appendCsv(line, exception == null ? "" : exception);
+                } else {
+                    line.append(timestamp).append(' ').append(definition.level).append(" [").append(thread).append("] ")
+                            .append(definition.className).append(" - Method '").append(definition.methodName).append("'");
+                    if (argumentCount > 0) {
+                        line.append(" | Params: [").append(String.join(", ", parameters)).append(']');
+                    }
+                    if (exception != null) {
+                        line.append(" | Threw Exception: ").append(exception);
+                    } else if (result != null) {
+                        line.append(" | Return: ").append(result);
+                    }
+                    LogCallAdvice.appendDuration(line.append(" | Duration: "), duration);
+                }
+                out.append(line).append('\n');
+            }
+        }
+    }
+
+    private static String readValue(DataInputStream in) throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case 'Z': return Boolean.toString(in.readByte() != 0);
+            case 'B': return Byte.toString(in.readByte());
+            case 'C': return String.valueOf(in.readChar());
+            case 'S': return Short.toString(in.readShort());
+            case 'I': return Integer.toString(in.readInt());
+            case 'J': return Long.toString(in.readLong());
+            case 'F': return Float.toString(in.readFloat());
+            case 'D': return Double.toString(in.readDouble());
+            case LogCallBinaryLog.TEXT: return in.readUTF();
+            case LogCallBinaryLog.NULL: return "null";
+            default: throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    private static StringBuilder appendCsv(StringBuilder sb, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return sb.append(value);
+        }
+        return sb.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+    /**
+     * A method, as defined in a segment before its first call.
+     */
+    private static final class Definition {
+
+        final int id;
+        final String className;
+        final String methodName;
+        final LogLevel level;
+
+        Definition(DataInputStream in) throws IOException {
+            id = in.readInt();
+            className = in.readUTF();
+            methodName = in.readUTF();
+            in.readUTF(); // descriptor
+            level = LogLevel.values()[in.readUnsignedByte()];
+            int parameterCount = in.readUnsignedByte();
+            for (int i = 0; i < parameterCount; i++) {
+                in.readUTF(); // parameter name
+            }
+        }
+    }
+}
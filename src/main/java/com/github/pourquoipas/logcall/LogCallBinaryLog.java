@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes logged calls as compact binary records to memory-mapped files, bypassing message rendering and Log4j.
+ * <p>
+ * Each thread writes to its own segment file, so writing a call takes no lock: the record is put straight into the
+ * mapped buffer of the thread. When a segment is full the thread rolls over to a new one. A segment is
+ * self-contained: before the first call of a method, it holds a definition record mapping the method
+ * {@link LogCallSite#getId() id} to its class, name, descriptor, level and parameter names, so the call records
+ * only carry the id. Call records hold the start time and the duration in nanoseconds, the captured arguments and
+ * return value, primitives in binary and objects as text cut to {@code logcall.binary.maxChars} characters, and the
+ * class and message of the exception if any. Segments are decoded with {@link LogCallBinaryDecoder}.
+ * <p>
+ * The sink replaces the Log4j output for every call when the {@code logcall.binary.dir} system property names the
+ * directory of the segments. Log4j levels still decide which calls are logged.
+ * <ul>
+ *     <li>{@code logcall.binary.segmentSize}: size of a segment file in bytes (default 16 MiB).</li>
+ *     <li>{@code logcall.binary.maxChars}: maximum number of characters of an object written as text (default 256).</li>
+ * </ul>
+ * <p>
+ * Segment layout, big-endian, strings in the modified UTF-8 of {@link java.io.DataOutput#writeUTF(String)}:
+ * <pre>
+ * header:  int magic "LCB1", short version, long epoch nanos, long nanoTime at the same instant, long thread id, UTF thread name
+ * DEFINE:  byte 1, int id, UTF class, UTF method, UTF descriptor, byte level, byte parameter count, UTF names
+ * CALL:    byte 2, int id, long start nanoTime, long duration, byte flags, byte argument count, values,
+ *          [value returned if flags &amp; 1], [UTF exception class, UTF message if flags &amp; 2]
+ * value:   byte JVM type (Z B C S I J F D), then the primitive; 'T' and a UTF text; or 'N' for null
+ * END:     byte 0, or the end of the file
+ * </pre>
+ */
+public final class LogCallBinaryLog {
+
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
+    static final int MAGIC = 0x4C434231;
+    static final short VERSION = 1;
+
+    static final byte END = 0;
+    static final byte DEFINE = 1;
+    static final byte CALL = 2;
+
+    static final int HAS_RESULT = 1;
+    static final int THREW = 2;
+
+    static final byte NULL = 'N';
+    static final byte TEXT = 'T';
+
+    static final String SUFFIX = ".lcb";
+
+    /**
+     * The longest text written, so that its modified UTF-8 length fits in an unsigned short.
+     */
+    private static final int MAX_TEXT_CHARS = 16 * 1024;
+
+    /**
+     * The shared instance used by the advice, or null when the binary log is disabled.
+     */
+    static final LogCallBinaryLog INSTANCE = createShared();
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxChars;
+    private final String processId;
+
+    private final ThreadLocal<Writer> writers = ThreadLocal.withInitial(Writer::new);
+    private final AtomicLong segmentCount = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+
+    LogCallBinaryLog(Path directory, int segmentSize, int maxChars) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxChars = maxChars;
+        String runtimeName = ManagementFactory.getRuntimeMXBean().getName();
+        int at = runtimeName.indexOf('@');
+        this.processId = at > 0 ? runtimeName.substring(0, at) : Long.toString(System.currentTimeMillis());
+    }
+
+    private static LogCallBinaryLog createShared() {
+        String dir = System.getProperty("logcall.binary.dir");
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        int segmentSize = Integer.getInteger("logcall.binary.segmentSize", 16 * 1024 * 1024);
+        int maxChars = Math.min(Integer.getInteger("logcall.binary.maxChars", 256), MAX_TEXT_CHARS);
+        return new LogCallBinaryLog(Paths.get(dir), Math.max(4096, segmentSize), Math.max(0, maxChars));
+    }
+
+    /**
+     * @return The binary log used by woven methods, or null when it is disabled.
+     */
+    public static LogCallBinaryLog getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return The directory of the segment files.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return The number of calls not written, because a record did not fit in an empty segment or a segment
+     * could not be created.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes a call to the segment of the current thread.
+     *
+     * @param site      The static metadata of the method.
+     * @param startTime The start of the call, from {@link System#nanoTime()}.
+     * @param duration  The duration of the call in nanoseconds.
+     * @param values    The captured arguments and return value, or null if nothing was captured.
+     * @param exception The exception thrown by the method, or null.
+     */
+    public void write(LogCallSite site, long startTime, long duration, LogCallValues values, Throwable exception) {
+        Writer writer = writers.get();
+        if (writer.buffer != null && writer.write(site, startTime, duration, values, exception)) {
+            return;
+        }
+        // The segment is full, or not created yet: start a new one and write the call again.
+        if (!writer.roll() || !writer.write(site, startTime, duration, values, exception)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * The segment of one thread; only used by that thread.
+     */
+    private final class Writer {
+
+        private final Thread thread = Thread.currentThread();
+        private final BitSet defined = new BitSet();
+        private final StringBuilder text = new StringBuilder();
+        private MappedByteBuffer buffer;
+
+        boolean roll() {
+            buffer = null;
+            defined.clear();
+            Path file = directory.resolve("logcall-" + processId + "-" + thread.getId() + "-"
+                    + segmentCount.incrementAndGet() + SUFFIX);
+            try {
+                Files.createDirectories(directory);
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    // The mapping stays valid once the channel is closed; it is released with the buffer.
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+                }
+                buffer.putInt(MAGIC).putShort(VERSION)
+                        .putLong(System.currentTimeMillis() * 1_000_000L).putLong(System.nanoTime())
+                        .putLong(thread.getId());
+                putText(thread.getName(), MAX_TEXT_CHARS);
+                return true;
+            } catch (IOException | BufferOverflowException e) {
+                buffer = null;
+                LOGGER.error("LogCall: could not create the binary log segment {}", file, e);
+                return false;
+            }
+        }
+
+        /**
+         * @return false if the record does not fit in the segment; nothing is written then.
+         */
+        boolean write(LogCallSite site, long startTime, long duration, LogCallValues values, Throwable exception) {
+            int start = buffer.position();
+            int id = site.getId();
+            try {
+                boolean define = !defined.get(id);
+                if (define) {
+                    putDefinition(site);
+                }
+                // Values are always captured: write those the annotation, its overrides or its pattern log.
+                boolean usesTemplate = site.getTemplate() != null;
+                int argumentCount = values != null && values.hasArguments() && (usesTemplate || site.isLogParameters())
+                        ? values.getArgumentCount() : 0;
+                boolean hasResult = values != null && exception == null && values.hasResult() && (usesTemplate || site.isLogReturn());
+                buffer.put(CALL).putInt(id).putLong(startTime).putLong(duration)
+                        .put((byte) ((hasResult ? HAS_RESULT : 0) | (exception != null ? THREW : 0)))
+                        .put((byte) Math.min(argumentCount, 255));
+                for (int i = 0; i < Math.min(argumentCount, 255); i++) {
+                    putValue(values, i);
+                }
+                if (hasResult) {
+                    putValue(values, values.getArgumentCount());
+                }
+                if (exception != null) {
+                    putText(exception.getClass().getName(), MAX_TEXT_CHARS);
+                    String message = exception.getMessage();
+                    putText(message == null ? "" : message, maxChars);
+                }
+                if (define) {
+                    defined.set(id);
+                }
+                return true;
+            } catch (BufferOverflowException e) {
+                // Erase the partial record: a zero byte marks the end of the segment.
+                for (int i = start; i < buffer.position(); i++) {
+                    buffer.put(i, END);
+                }
+                buffer.position(start);
+                return false;
+            }
+        }
+
+        private void putDefinition(LogCallSite site) {
+            buffer.put(DEFINE).putInt(site.getId());
+            putText(site.getDeclaringClass().getName(), MAX_TEXT_CHARS);
+            putText(site.getMethodName(), MAX_TEXT_CHARS);
+            putText(site.getDescriptor(), MAX_TEXT_CHARS);
+            buffer.put((byte) site.getLevel().ordinal());
+            String[] names = site.getParameterNames();
+            buffer.put((byte) Math.min(names.length, 255));
+            for (int i = 0; i < Math.min(names.length, 255); i++) {
+                putText(names[i], MAX_TEXT_CHARS);
+            }
+        }
+
+        private void putValue(LogCallValues values, int index) {
+            char type = values.getType(index);
+            long bits = values.getPrimitive(index);
+            switch (type) {
+                case 'Z':
+                case 'B': buffer.put((byte) type).put((byte) bits); break;
+                case 'C':
+                case 'S': buffer.put((byte) type).putShort((short) bits); break;
+                case 'I':
+                case 'F': buffer.put((byte) type).putInt((int) bits); break;
+                case 'J':
+                case 'D': buffer.put((byte) type).putLong(bits); break;
+                default:
+                    Object value = values.getReference(index);
+                    if (value == null) {
+                        buffer.put(NULL);
+                    } else {
+                        buffer.put(TEXT);
+                        putText(value, maxChars);
+                    }
+                    break;
+            }
+        }
+
+        private void putText(Object value, int limit) {
+            CharSequence chars;
+            if (value instanceof CharSequence) {
+                chars = (CharSequence) value;
+            } else {
+                text.setLength(0);
+                LogCallOutput output = LogCallOutput.acquire(text, 0);
+                try {
+                    output.render(value);
+                } finally {
+                    output.release();
+                }
+                chars = text;
+            }
+            int length = Math.min(chars.length(), limit);
+            // Modified UTF-8, as read by DataInput.readUTF: an unsigned short byte length, then the characters.
+            int lengthPosition = buffer.position();
+            buffer.putShort((short) 0);
+            for (int i = 0; i < length; i++) {
+                char c = chars.charAt(i);
+                if (c != 0 && c < 0x80) {
+                    buffer.put((byte) c);
+                } else if (c < 0x800) {
+                    buffer.put((byte) (0xC0 | (c >> 6))).put((byte) (0x80 | (c & 0x3F)));
+                } else {
+                    buffer.put((byte) (0xE0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3F))).put((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+            buffer.putShort(lengthPosition, (short) (buffer.position() - lengthPosition - 2));
+        }
+    }
+}
@@ -13,28 +13,83 @@ package com.github.pourquoipas.logcall;
 import net.bytebuddy.ByteBuddy;
 import net.bytebuddy.asm.Advice;
 import net.bytebuddy.description.annotation.AnnotationDescription;
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.method.ParameterDescription;
+import net.bytebuddy.description.method.ParameterList;
+import net.bytebuddy.description.modifier.FieldManifestation;
+import net.bytebuddy.description.modifier.Ownership;
+import net.bytebuddy.description.modifier.SyntheticState;
+import net.bytebuddy.description.modifier.Visibility;
 import net.bytebuddy.description.type.TypeDescription;
 import net.bytebuddy.dynamic.ClassFileLocator;
 import net.bytebuddy.dynamic.DynamicType;
 import net.bytebuddy.dynamic.scaffold.TypeValidation;
+import net.bytebuddy.implementation.bytecode.ByteCodeAppender;
+import net.bytebuddy.implementation.bytecode.StackManipulation;
+import net.bytebuddy.implementation.bytecode.assign.Assigner;
+import net.bytebuddy.implementation.bytecode.collection.ArrayFactory;
+import net.bytebuddy.implementation.bytecode.constant.ClassConstant;
+import net.bytebuddy.implementation.bytecode.constant.IntegerConstant;
+import net.bytebuddy.implementation.bytecode.constant.NullConstant;
+import net.bytebuddy.implementation.bytecode.constant.TextConstant;
+import net.bytebuddy.implementation.bytecode.member.FieldAccess;
+import net.bytebuddy.implementation.bytecode.member.MethodInvocation;
+import net.bytebuddy.implementation.bytecode.member.MethodVariableAccess;
+import net.bytebuddy.matcher.ElementMatcher;
 import net.bytebuddy.matcher.ElementMatchers;
 import net.bytebuddy.pool.TypePool;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 /**
  * A compile-time class weaver using ByteBuddy.
  * This version uses the robust `Advice` API and is idempotent, preventing classes
  * from being woven more than once.
+ * <p>
+ * Class files are processed in parallel on a fork-join pool. The hash of every class file is kept in a manifest
+ * next to the classes directory, so an incremental build only processes the classes that changed. The manifest is
+ * keyed by the hash of the library and the weaving options: a new version of LogCall weaves every class again.
+ * Only the classes whose constant pool references {@link LogCall} are parsed by ByteBuddy.
+ * Given an input and an output jar instead of a directory, the weaver streams the woven jar to the output.
+ * <p>
+ * For startup profiling, the {@code logcall.startup.packages} system property lists, comma-separated, the packages or
+ * classes whose constructors and type initializers get the timing advice of {@link LogCallStartupAdvice}, with
+ * their subpackages and nested classes; see {@link LogCallStartup}.
  */
 public class LogCallClassWeaver {
 
@@ -47,9 +102,62 @@ public class LogCallClassWeaver {
     private @interface AlreadyWoven {
     }
 
+    /**
+     * Prefix of the static fields holding the {@link LogCallSite} of each woven method.
+     */
+    private static final String SITE_FIELD_PREFIX = "logcall$site$";
+
+    /**
+     * Suffix of the manifest file, written next to the classes directory, that holds the hash of every class file
+     * as left by the last run. Classes whose hash did not change are skipped.
+     */
+    private static final String MANIFEST_SUFFIX = ".logcall-weaver";
+
+    /**
+     * Packages or classes selected for startup profiling, set with the {@code logcall.startup.packages}
+     * system property.
+     */
+    private static final String[] STARTUP_PACKAGES = Arrays.stream(System.getProperty("logcall.startup.packages", "").split(","))
+            .map(String::trim)
+            .filter(name -> !name.isEmpty())
+            .toArray(String[]::new);
+
+    /**
+     * The manifest is only valid for the library and the options it was written with, see {@link #libraryHash()}.
+     */
+    private static final String MANIFEST_HEADER = "# LogCall weaver manifest v2 library=";
+
+    /**
+     * Number of worker threads, set with the {@code logcall.weaver.threads} system property.
+     */
+    private static final int PARALLELISM = Math.max(1, Integer.getInteger("logcall.weaver.threads",
+            Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Set the {@code logcall.weaver.incremental} system property to false to ignore the manifest.
+     */
+    private static final boolean INCREMENTAL = Boolean.parseBoolean(System.getProperty("logcall.weaver.incremental", "true"));
+
+    /**
+     * The descriptor of {@link LogCall}, as stored in the constant pool of every class that uses it.
+     */
+    private static final byte[] LOGCALL_DESCRIPTOR = ("L" + LogCall.class.getName().replace('.', '/') + ";")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final MethodDescription.InDefinedShape SITE_FACTORY = factory(LogCallSite.class, "of",
+            Class.class, String.class, String.class, LogCallTemplate.class);
+
+    private static final MethodDescription.InDefinedShape TEMPLATE_FACTORY = factory(LogCallTemplate.class, "of",
+            int[].class, String[].class);
+
     public static void main(String[] args) throws IOException {
+        if (args.length == 2) {
+            weaveJar(Paths.get(args[0]), Paths.get(args[1]));
+            return;
+        }
         if (args.length != 1) {
             System.err.println("Usage: java LogCallClassWeaver <classes_directory>");
+            System.err.println("   or: java LogCallClassWeaver <input_jar> <output_jar>");
             System.exit(1);
         }
 
@@ -58,69 +166,631 @@ public class LogCallClassWeaver {
             System.err.println("Error: " + args[0] + " is not a valid directory.");
             System.exit(1);
         }
+        weaveDirectory(classesDir.toPath());
+    }
 
+    /**
+     * Weaves the classes of a directory in place, skipping the class files left unchanged since the previous run.
+     *
+     * @param classesPath The classes directory; the manifest is written next to it.
+     * @return The number of class files skipped as unchanged.
+     */
+    static long weaveDirectory(Path classesPath) throws IOException {
+        File classesDir = classesPath.toFile();
         System.out.println("### ByteBuddy CTI: Starting class weaving in directory: " + classesDir.getAbsolutePath());
 
+        List<Path> classFiles;
+        try (Stream<Path> paths = Files.walk(classesPath)) {
+            classFiles = paths.filter(Files::isRegularFile)
+                    .filter(p -> p.toString().endsWith(".class"))
+                    .collect(Collectors.toList());
+        }
+
+        Path manifestFile = classesPath.resolveSibling(classesDir.getName() + MANIFEST_SUFFIX);
+        String manifestHeader = MANIFEST_HEADER + libraryHash();
+        Map<String, String> previousHashes = INCREMENTAL ? readManifest(manifestFile, manifestHeader) : Collections.emptyMap();
+        Map<String, String> currentHashes = new ConcurrentHashMap<>();
+        LongAdder unchanged = new LongAdder();
+
         ClassFileLocator classFileLocator = new ClassFileLocator.Compound(
                 new ClassFileLocator.ForFolder(classesDir),
                 ClassFileLocator.ForClassLoader.of(Thread.currentThread().getContextClassLoader()),
                 ClassFileLocator.ForClassLoader.ofPlatformLoader()
         );
+        // The default type pool caches descriptions in a concurrent map, so all the workers share it.
         TypePool typePool = TypePool.Default.of(classFileLocator);
 
         ByteBuddy byteBuddy = new ByteBuddy().with(TypeValidation.DISABLED);
 
-        try (Stream<Path> paths = Files.walk(classesDir.toPath())) {
-            paths.filter(Files::isRegularFile)
-                    .filter(p -> p.toString().endsWith(".class"))
-                    .forEach(classFile -> {
-                        String className = getClassName(classesDir.toPath(), classFile);
-                        if (className == null || className.equals(LogCallClassWeaver.class.getName()) || className.equals(LogCallAdvice.class.getName())) {
-                            return;
-                        }
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        try {
+            pool.submit(() -> classFiles.parallelStream().forEach(classFile -> {
+                String relativePath = classesPath.relativize(classFile).toString().replace(File.separatorChar, '/');
+                String className = getClassName(classesPath, classFile);
+                if (className == null) {
+                    return;
+                }
 
+                try {
+                    byte[] originalBytes = Files.readAllBytes(classFile);
+                    String originalHash = hash(originalBytes);
+                    // --- INCREMENTAL CHECK ---
+                    // Skip this class if it is exactly what the previous run left on disk.
+                    if (originalHash.equals(previousHashes.get(relativePath))) {
+                        currentHashes.put(relativePath, originalHash);
+                        unchanged.increment();
+                        return;
+                    }
+                    byte[] transformedBytes = mayUseLogCall(originalBytes) || isStartupClass(className)
+                            ? weaveClass(className, typePool, classFileLocator, byteBuddy)
+                            : null;
+                    if (transformedBytes != null && !Arrays.equals(originalBytes, transformedBytes)) {
+                        write(classFile, transformedBytes);
+                        currentHashes.put(relativePath, hash(transformedBytes));
+                        System.out.println("### ByteBuddy CTI: Successfully transformed: " + className);
+                    } else {
+                        currentHashes.put(relativePath, originalHash);
+                    }
+                } catch (Exception e) {
+                    // Left out of the manifest, so that the next build tries again.
+                    System.err.println("### ByteBuddy CTI: Error processing " + className + ": " + e.getMessage());
+                    e.printStackTrace(System.err);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Class weaving interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Class weaving failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        if (INCREMENTAL) {
+            writeManifest(manifestFile, manifestHeader, currentHashes);
+        }
+        System.out.println("### ByteBuddy CTI: Class weaving complete (" + classFiles.size() + " classes, "
+                + unchanged.sum() + " unchanged since the previous build).");
+        return unchanged.sum();
+    }
+
+    /**
+     * Weaves the classes of a jar into a new jar, one entry at a time, so that memory stays bounded whatever the
+     * size of the jar: only the class being woven is held in memory.
+     * <p>
+     * Entries that are not woven are copied with their metadata. Stored entries are copied byte for byte;
+     * deflated entries go through the zip streams, which cannot copy compressed data as is.
+     * Signature files are dropped, since they would not match the woven classes, with a warning naming the jar.
+     *
+     * @param inputJar  The jar to weave; it is not modified.
+     * @param outputJar The jar to write; it must not be the input jar.
+     */
+    static void weaveJar(Path inputJar, Path outputJar) throws IOException {
+        if (Files.exists(outputJar) && Files.isSameFile(inputJar, outputJar)) {
+            throw new IOException("The output jar must differ from the input jar: " + outputJar);
+        }
+        System.out.println("### ByteBuddy CTI: Starting class weaving of jar: " + inputJar.toAbsolutePath());
+
+        ByteBuddy byteBuddy = new ByteBuddy().with(TypeValidation.DISABLED);
+        int entries = 0;
+        int woven = 0;
+        List<String> signatureFiles = new ArrayList<>();
+        byte[] buffer = new byte[8192];
+        try (ClassFileLocator jarLocator = ClassFileLocator.ForJarFile.of(inputJar.toFile());
+             ZipInputStream in = new ZipInputStream(new BufferedInputStream(Files.newInputStream(inputJar)));
+             ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(outputJar)))) {
+            ClassFileLocator dependencyLocator = new ClassFileLocator.Compound(
+                    jarLocator,
+                    ClassFileLocator.ForClassLoader.of(Thread.currentThread().getContextClassLoader()),
+                    ClassFileLocator.ForClassLoader.ofPlatformLoader());
+            for (ZipEntry entry; (entry = in.getNextEntry()) != null; ) {
+                entries++;
+                if (isSignatureFile(entry.getName())) {
+                    signatureFiles.add(entry.getName());
+                    continue;
+                }
+                String className = entry.isDirectory() ? null : getClassName(entry.getName());
+                if (className != null) {
+                    byte[] originalBytes = readFully(in, buffer);
+                    byte[] transformedBytes = null;
+                    if (mayUseLogCall(originalBytes) || isStartupClass(className)) {
                         try {
-                            TypePool.Resolution resolution = typePool.describe(className);
-                            if (!resolution.isResolved()) {
-                                System.err.println("### ByteBuddy CTI: Could not resolve class from pool: " + className);
-                                return;
-                            }
-                            TypeDescription typeDescription = resolution.resolve();
-
-                            // --- IDEMPOTENCY CHECK ---
-                            // Skip this class if it already has our marker annotation.
-                            if (ElementMatchers.isAnnotatedWith(AlreadyWoven.class).matches(typeDescription)) {
-                                return;
-                            }
-
-                            boolean hasAnnotatedMethod = ElementMatchers.declaresMethod(
-                                    ElementMatchers.isAnnotatedWith(LogCall.class)
-                            ).matches(typeDescription);
-
-                            if (hasAnnotatedMethod) {
-                                System.out.println("### ByteBuddy CTI: Found target for transformation: " + typeDescription.getName());
-
-                                DynamicType.Unloaded<?> unloaded = byteBuddy.redefine(typeDescription, classFileLocator)
-                                        .visit(Advice.to(LogCallAdvice.class).on(ElementMatchers.isAnnotatedWith(LogCall.class)))
-                                        // Add the marker annotation to prevent re-weaving in the future.
-                                        .annotateType(AnnotationDescription.Builder.ofType(AlreadyWoven.class).build())
-                                        .make();
-
-                                byte[] originalBytes = Files.readAllBytes(classFile);
-                                byte[] transformedBytes = unloaded.getBytes();
-
-                                if (!Arrays.equals(originalBytes, transformedBytes)) {
-                                    Files.write(classFile, transformedBytes);
-                                    System.out.println("### ByteBuddy CTI: Successfully transformed: " + typeDescription.getName());
-                                }
-                            }
+                            // Describe the entry itself, which may be a versioned class of a multi-release jar.
+                            ClassFileLocator classFileLocator = new ClassFileLocator.Compound(
+                                    ClassFileLocator.Simple.of(className, originalBytes), dependencyLocator);
+                            transformedBytes = weaveClass(className, TypePool.Default.of(classFileLocator), classFileLocator, byteBuddy);
                         } catch (Exception e) {
                             System.err.println("### ByteBuddy CTI: Error processing " + className + ": " + e.getMessage());
                             e.printStackTrace(System.err);
                         }
-                    });
+                    }
+                    if (transformedBytes != null) {
+                        ZipEntry wovenEntry = new ZipEntry(entry.getName());
+                        wovenEntry.setTime(entry.getTime());
+                        out.putNextEntry(wovenEntry);
+                        out.write(transformedBytes);
+                        woven++;
+                        System.out.println("### ByteBuddy CTI: Successfully transformed: " + className);
+                    } else {
+                        out.putNextEntry(copyOf(entry));
+                        out.write(originalBytes);
+                    }
+                } else {
+                    out.putNextEntry(copyOf(entry));
+                    for (int read; (read = in.read(buffer)) != -1; ) {
+                        out.write(buffer, 0, read);
+                    }
+                }
+                out.closeEntry();
+            }
+        }
+        if (!signatureFiles.isEmpty()) {
+            System.err.println("### ByteBuddy CTI: Warning: " + inputJar.toAbsolutePath() + " is signed; the woven jar "
+                    + outputJar.toAbsolutePath() + " is written unsigned, without " + String.join(", ", signatureFiles));
+        }
+        System.out.println("### ByteBuddy CTI: Class weaving complete (" + entries + " entries, " + woven + " classes woven).");
+    }
+
+    /**
+     * Copies the metadata of an entry. Only stored entries keep their sizes: deflated ones are compressed again.
+     */
+    private static ZipEntry copyOf(ZipEntry entry) {
+        ZipEntry copy = new ZipEntry(entry);
+        if (copy.getMethod() != ZipEntry.STORED) {
+            copy.setCompressedSize(-1);
+        }
+        return copy;
+    }
+
+    private static boolean isSignatureFile(String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0) {
+            return false;
+        }
+        return name.endsWith(".SF") || name.endsWith(".DSA") || name.endsWith(".RSA") || name.endsWith(".EC");
+    }
+
+    private static byte[] readFully(InputStream in, byte[] buffer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int read; (read = in.read(buffer)) != -1; ) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return The name of the class stored in a jar entry, or null if the entry is not a class file.
+     */
+    private static String getClassName(String entryName) {
+        if (!entryName.endsWith(".class")) {
+            return null;
+        }
+        String path = entryName;
+        if (path.startsWith("META-INF/versions/")) {
+            int start = path.indexOf('/', "META-INF/versions/".length());
+            if (start < 0) {
+                return null;
+            }
+            path = path.substring(start + 1);
+        } else if (path.startsWith("META-INF/")) {
+            return null;
+        }
+        return path.substring(0, path.length() - ".class".length()).replace('/', '.');
+    }
+
+    /**
+     * Weaves a single class.
+     *
+     * @return The new bytes of the class, or null if it does not need to be woven.
+     */
+    static byte[] weaveClass(String className, TypePool typePool, ClassFileLocator classFileLocator, ByteBuddy byteBuddy) {
+        if (className.equals(LogCallClassWeaver.class.getName()) || className.equals(LogCallAdvice.class.getName())) {
+            return null;
+        }
+
+        TypePool.Resolution resolution = typePool.describe(className);
+        if (!resolution.isResolved()) {
+            System.err.println("### ByteBuddy CTI: Could not resolve class from pool: " + className);
+            return null;
+        }
+        TypeDescription typeDescription = resolution.resolve();
+
+        if (!isCandidate().matches(typeDescription)) {
+            return null;
+        }
+
+        System.out.println("### ByteBuddy CTI: Found target for transformation: " + typeDescription.getName());
+        return weaveAndMark(byteBuddy.redefine(typeDescription, classFileLocator), typeDescription)
+                .make()
+                .getBytes();
+    }
+
+    /**
+     * Matches the types that declare a method annotated with {@link LogCall}, or are selected for startup profiling,
+     * and were not woven yet.
+     */
+    static ElementMatcher<TypeDescription> isCandidate() {
+        // --- IDEMPOTENCY CHECK ---
+        // Skip a class if it already has our marker annotation.
+        return ElementMatchers.not(ElementMatchers.<TypeDescription>isAnnotatedWith(AlreadyWoven.class))
+                .and(ElementMatchers.declaresMethod(ElementMatchers.<MethodDescription>isAnnotatedWith(LogCall.class))
+                        .or(type -> isStartupClass(type.getName())));
+    }
+
+    /**
+     * Tells whether the constructors and the type initializer of a class are timed for startup profiling.
+     *
+     * @param className The binary name of the class, e.g. {@code com.example.Outer$Inner}.
+     */
+    static boolean isStartupClass(String className) {
+        // The classes of the library are never timed: the advice itself would run into them.
+        if (className.startsWith(LogCall.class.getName())) {
+            return false;
+        }
+        for (String selected : STARTUP_PACKAGES) {
+            if (className.startsWith(selected) && (className.length() == selected.length()
+                    || className.charAt(selected.length()) == '.' || className.charAt(selected.length()) == '$')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hashes what decides the woven bytecode: the classes of the library that generate or are inlined into it,
+     * and the startup profiling option. Woven classes kept by the manifest or by the cache of {@link LogCallAgent}
+     * are only valid for the same hash.
+     *
+     * @return The first 16 hexadecimal digits of the hash.
+     */
+    static String libraryHash() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Class<?> type : new Class<?>[]{LogCallClassWeaver.class, CapturedValues.class,
+                LogCallAdvice.class, LogCallSite.class, LogCallStartupAdvice.class,
+                LogCallStartupAdvice.TypeInitializer.class}) {
+            String name = type.getName();
+            try (InputStream in = type.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+                if (in == null) {
+                    throw new IOException("Class file not found: " + name);
+                }
+                bytes.write(readFully(in, new byte[4096]));
+            }
+        }
+        byte[] startupPackages = String.join(",", STARTUP_PACKAGES).getBytes(StandardCharsets.UTF_8);
+        bytes.write(startupPackages, 0, startupPackages.length);
+        return hash(bytes.toByteArray()).substring(0, 16);
+    }
+
+    /**
+     * Weaves the annotated methods of a type and adds the marker annotation to prevent re-weaving in the future.
+     */
+    static DynamicType.Builder<?> weaveAndMark(DynamicType.Builder<?> builder, TypeDescription typeDescription) {
+        return weave(builder, typeDescription)
+                .annotateType(AnnotationDescription.Builder.ofType(AlreadyWoven.class).build());
+    }
+
+    /**
+     * Tells whether a class file may declare a method annotated with {@link LogCall}, by looking for the
+     * descriptor of the annotation among the UTF8 entries of its constant pool. A class without that entry cannot
+     * reference the annotation, so it is skipped without being parsed by ByteBuddy.
+     *
+     * @param classFile The bytes of the class file.
+     * @return false if the class certainly does not use the annotation; true if it may, or if the file is malformed.
+     */
+    static boolean mayUseLogCall(byte[] classFile) {
+        try {
+            if (readInt(classFile, 0) != 0xCAFEBABE) {
+                return true;
+            }
+            int count = readUnsignedShort(classFile, 8);
+            int offset = 10;
+            for (int i = 1; i < count; i++) {
+                int tag = classFile[offset];
+                switch (tag) {
+                    case 1: // Utf8
+                        int length = readUnsignedShort(classFile, offset + 1);
+                        if (length == LOGCALL_DESCRIPTOR.length && regionMatches(classFile, offset + 3, LOGCALL_DESCRIPTOR)) {
+                            return true;
+                        }
+                        offset += 3 + length;
+                        break;
+                    case 7: // Class
+                    case 8: // String
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        offset += 3;
+                        break;
+                    case 15: // MethodHandle
+                        offset += 4;
+                        break;
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        offset += 5;
+                        break;
+                    case 5: // Long
+                    case 6: // Double
+                        offset += 9;
+                        i++; // takes two entries
+                        break;
+                    default:
+                        return true;
+                }
+            }
+            return false;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return true;
+        }
+    }
+
+    private static int readUnsignedShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (readUnsignedShort(bytes, offset) << 16) | readUnsignedShort(bytes, offset + 2);
+    }
+
+    private static boolean regionMatches(byte[] bytes, int offset, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (bytes[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces a class file atomically, so that a worker reading it, e.g. to describe a subclass,
+     * never sees it half written.
+     */
+    private static void write(Path classFile, byte[] bytes) throws IOException {
+        Path temporaryFile = classFile.resolveSibling(classFile.getFileName() + ".tmp");
+        Files.write(temporaryFile, bytes);
+        try {
+            Files.move(temporaryFile, classFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile, classFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads the hashes of the class files as the previous run left them. A missing or unreadable manifest
+     * just means that every class is processed.
+     */
+    private static Map<String, String> readManifest(Path manifestFile, String manifestHeader) {
+        Map<String, String> hashes = new HashMap<>();
+        if (!Files.isRegularFile(manifestFile)) {
+            return hashes;
+        }
+        try {
+            List<String> lines = Files.readAllLines(manifestFile, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(manifestHeader)) {
+                return hashes;
+            }
+            for (String line : lines.subList(1, lines.size())) {
+                int separator = line.lastIndexOf('\t');
+                if (separator > 0) {
+                    hashes.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("### ByteBuddy CTI: Could not read the manifest " + manifestFile + ": " + e.getMessage());
+            hashes.clear();
+        }
+        return hashes;
+    }
+
+    private static void writeManifest(Path manifestFile, String manifestHeader, Map<String, String> hashes) {
+        List<String> lines = new ArrayList<>(hashes.size() + 1);
+        lines.add(manifestHeader);
+        new TreeMap<>(hashes).forEach((path, hash) -> lines.add(path + '\t' + hash));
+        try {
+            Files.write(manifestFile, lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("### ByteBuddy CTI: Could not write the manifest " + manifestFile + ": " + e.getMessage());
+        }
+    }
+
+    static String hash(byte[] bytes) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest(bytes)) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Applies the advice to every method annotated with {@link LogCall}. Each method gets its own static field
+     * holding its {@link LogCallSite}, initialized in the type initializer and bound to the advice
+     * through {@link LogCallAdvice.Site}. Custom log patterns are compiled here, once, and stored in the site.
+     */
+    private static DynamicType.Builder<?> weave(DynamicType.Builder<?> builder, TypeDescription typeDescription) {
+        int fieldModifiers = (typeDescription.isInterface() ? Visibility.PUBLIC : Visibility.PRIVATE).getMask()
+                | Ownership.STATIC.getMask()
+                | FieldManifestation.FINAL.getMask()
+                | SyntheticState.SYNTHETIC.getMask();
+        List<StackManipulation> initializer = new ArrayList<>();
+
+        int index = 0;
+        for (MethodDescription.InDefinedShape method : typeDescription.getDeclaredMethods()
+                .filter(ElementMatchers.isAnnotatedWith(LogCall.class)
+                        .and(ElementMatchers.not(ElementMatchers.isAbstract()))
+                        .and(ElementMatchers.not(ElementMatchers.isNative())))) {
+            AnnotationDescription logCall = method.getDeclaredAnnotations().ofType(LogCall.class);
+            String customLog = logCall.getValue("customLog").resolve(String.class);
+            LogCallTemplate template = customLog.isEmpty() ? null : LogCallTemplate.compile(customLog, parameterNames(method));
+
+            // Capture everything the message may render, whatever the annotation says: logParameters and logReturn
+            // can be turned on at runtime, see LogCallControl. Aggregated calls render nothing, but need the
+            // stage returned by an asynchronous method to be timed when it completes.
+            boolean aggregate = logCall.getValue("aggregate").resolve(Boolean.class);
+            boolean captureArguments = !aggregate && !method.getParameters().isEmpty();
+            boolean captureReturn = !method.getReturnType().represents(void.class) && (!aggregate || returnsCompletionStage(method));
+
+            FieldDescription.InDefinedShape siteField = new FieldDescription.Latent(typeDescription,
+                    SITE_FIELD_PREFIX + index++,
+                    fieldModifiers,
+                    TypeDescription.Generic.OfNonGenericType.ForLoadedType.of(LogCallSite.class),
+                    Collections.emptyList());
+            builder = builder.define(siteField);
+            initializer.add(new StackManipulation.Compound(
+                    ClassConstant.of(typeDescription),
+                    new TextConstant(method.getName()),
+                    new TextConstant(method.getDescriptor()),
+                    template == null ? NullConstant.INSTANCE : templateConstant(template),
+                    MethodInvocation.invoke(SITE_FACTORY),
+                    FieldAccess.forField(siteField).write()));
+
+            builder = builder.visit(Advice.withCustomMapping()
+                    .bind(LogCallAdvice.Site.class, siteField)
+                    .bind(LogCallAdvice.Captured.class, new CapturedValues(captureArguments, captureReturn))
+                    .to(LogCallAdvice.class)
+                    .on(ElementMatchers.named(method.getName()).and(ElementMatchers.hasDescriptor(method.getDescriptor()))));
+        }
+
+        if (isStartupClass(typeDescription.getName())) {
+            builder = builder.visit(Advice.to(LogCallStartupAdvice.class).on(ElementMatchers.isConstructor()))
+                    .visit(Advice.to(LogCallStartupAdvice.TypeInitializer.class).on(ElementMatchers.isTypeInitializer()));
+        }
+
+        return builder.initializer(new ByteCodeAppender.Simple(initializer));
+    }
+
+    /**
+     * Binds {@link LogCallAdvice.Captured} to code generated for the signature of the woven method: it acquires a
+     * {@link LogCallValues} and stores each captured argument, then the return value, with the setter of its exact
+     * type, so that primitives are never boxed. Like any advice value, the code runs where the advice reads the
+     * parameter, i.e. only for the calls that are logged. Without anything to capture the parameter is null.
+     */
+    static final class CapturedValues implements Advice.OffsetMapping {
+
+        private static final MethodDescription ACQUIRE = valuesMethod("acquire", int.class);
+
+        private static final Map<Class<?>, MethodDescription> SETTERS = new HashMap<>();
+
+        static {
+            SETTERS.put(boolean.class, valuesMethod("setBoolean", int.class, boolean.class));
+            SETTERS.put(byte.class, valuesMethod("setByte", int.class, byte.class));
+            SETTERS.put(char.class, valuesMethod("setChar", int.class, char.class));
+            SETTERS.put(short.class, valuesMethod("setShort", int.class, short.class));
+            SETTERS.put(int.class, valuesMethod("setInt", int.class, int.class));
+            SETTERS.put(long.class, valuesMethod("setLong", int.class, long.class));
+            SETTERS.put(float.class, valuesMethod("setFloat", int.class, float.class));
+            SETTERS.put(double.class, valuesMethod("setDouble", int.class, double.class));
+            SETTERS.put(Object.class, valuesMethod("setObject", int.class, Object.class));
+        }
+
+        private final boolean captureArguments;
+        private final boolean captureReturn;
+
+        CapturedValues(boolean captureArguments, boolean captureReturn) {
+            this.captureArguments = captureArguments;
+            this.captureReturn = captureReturn;
+        }
+
+        @Override
+        public Target resolve(TypeDescription instrumentedType, MethodDescription instrumentedMethod, Assigner assigner,
+                              Advice.ArgumentHandler argumentHandler, Sort sort) {
+            if (!captureArguments && !captureReturn) {
+                return new Target.ForStackManipulation(NullConstant.INSTANCE);
+            }
+            ParameterList<?> parameters = instrumentedMethod.getParameters();
+            List<StackManipulation> code = new ArrayList<>();
+            code.add(IntegerConstant.forValue(parameters.size()));
+            code.add(MethodInvocation.invoke(ACQUIRE));
+            if (captureArguments) {
+                for (ParameterDescription parameter : parameters) {
+                    code.add(set(parameter.getIndex(), parameter.getType().asErasure(), argumentHandler.argument(parameter.getOffset())));
+                }
+            }
+            if (captureReturn) {
+                code.add(set(parameters.size(), instrumentedMethod.getReturnType().asErasure(), argumentHandler.returned()));
+            }
+            return new Target.ForStackManipulation(new StackManipulation.Compound(code));
+        }
+
+        private static StackManipulation set(int index, TypeDescription type, int offset) {
+            MethodDescription setter = SETTERS.get(type.isPrimitive() ? primitiveClass(type) : Object.class);
+            return new StackManipulation.Compound(
+                    IntegerConstant.forValue(index),
+                    MethodVariableAccess.of(type).loadFrom(offset),
+                    MethodInvocation.invoke(setter));
+        }
+
+        private static Class<?> primitiveClass(TypeDescription type) {
+            for (Class<?> primitive : SETTERS.keySet()) {
+                if (type.represents(primitive)) {
+                    return primitive;
+                }
+            }
+            throw new IllegalArgumentException("Unexpected type " + type);
+        }
+
+        private static MethodDescription valuesMethod(String name, Class<?>... parameterTypes) {
+            try {
+                return new MethodDescription.ForLoadedMethod(LogCallValues.class.getMethod(name, parameterTypes));
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static boolean returnsCompletionStage(MethodDescription method) {
+        TypeDescription returnType = method.getReturnType().asErasure();
+        try {
+            return !returnType.isPrimitive() && returnType.isAssignableTo(CompletionStage.class);
+        } catch (RuntimeException e) {
+            // The return type is not on the weaving class path: LogCallSite checks it again when the class is loaded.
+            return !returnType.isPrimitive();
+        }
+    }
+
+    private static String[] parameterNames(MethodDescription method) {
+        ParameterList<?> parameters = method.getParameters();
+        String[] names = new String[parameters.size()];
+        for (ParameterDescription parameter : parameters) {
+            // Without the -parameters flag the names are not in the class file, same as Parameter.getName().
+            names[parameter.getIndex()] = parameter.isNamed() ? parameter.getName() : "arg" + parameter.getIndex();
+        }
+        return names;
+    }
+
+    /**
+     * Emits the bytecode that recreates the given template through {@link LogCallTemplate#of(int[], String[])}.
+     */
+    private static StackManipulation templateConstant(LogCallTemplate template) {
+        List<StackManipulation> codes = new ArrayList<>();
+        for (int code : template.codes()) {
+            codes.add(IntegerConstant.forValue(code));
+        }
+        List<StackManipulation> literals = new ArrayList<>();
+        for (String literal : template.literals()) {
+            literals.add(literal == null ? NullConstant.INSTANCE : new TextConstant(literal));
+        }
+        return new StackManipulation.Compound(
+                ArrayFactory.forType(TypeDescription.Generic.OfNonGenericType.ForLoadedType.of(int.class)).withValues(codes),
+                ArrayFactory.forType(TypeDescription.Generic.OfNonGenericType.ForLoadedType.of(String.class)).withValues(literals),
+                MethodInvocation.invoke(TEMPLATE_FACTORY));
+    }
+
+    private static MethodDescription.InDefinedShape factory(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            return new MethodDescription.ForLoadedMethod(type.getMethod(name, parameterTypes));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Missing factory method " + type.getName() + "." + name, e);
         }
-        System.out.println("### ByteBuddy CTI: Class weaving complete.");
     }
 
     private static String getClassName(Path baseDir, Path classFile) {
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the identical calls logged within a time window: the first one is logged, the following ones are only
+ * counted, and a summary line with their count and their min and max duration is logged when the window expires.
+ * <p>
+ * Calls are identical when they have the same shape: the same method, the same logged arguments and return value,
+ * and the same exception class. The shape is the text of these values, rendered like in the message, so two calls
+ * are coalesced only when they would log the same line. The shape is rendered into a builder of the thread and
+ * hashed there; windows are looked up by that hash, and the shape is compared with the builder on a hit, so a
+ * repeated call allocates nothing beyond what its renderers do. Only the first call of a window keeps its shape
+ * as a String. A call whose hash collides with another shape is logged as usual.
+ * The coalescer is configured with system properties:
+ * <ul>
+ *     <li>{@code logcall.coalesce.window}: length of the window in milliseconds, 0 to log every call
+ *     (default 0).</li>
+ *     <li>{@code logcall.coalesce.maxKeys}: maximum number of shapes tracked at once (default 1024). When it is
+ *     reached, new shapes are logged as usual until a window expires.</li>
+ * </ul>
+ * A daemon thread logs the summaries of the windows that expired without a new call.
+ */
+final class LogCallCoalescer {
+
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
+    static final LogCallCoalescer INSTANCE = new LogCallCoalescer(
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("logcall.coalesce.window", 0)),
+            Integer.getInteger("logcall.coalesce.maxKeys", 1024));
+
+    /**
+     * The shape of the calls of each thread is rendered into the same builder, and looked up with the same key.
+     */
+    private static final ThreadLocal<Shape> SHAPES = ThreadLocal.withInitial(Shape::new);
+
+    /**
+     * The key of a window: the hash of its shape. Windows are looked up with the mutable key of the thread, so
+     * that a lookup does not box the hash.
+     */
+    private static final class Key {
+        long hash;
+
+        Key(long hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(hash);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).hash == hash;
+        }
+    }
+
+    private static final class Shape {
+        final StringBuilder text = new StringBuilder();
+        final Key key = new Key(0);
+    }
+
+    private static final class Entry {
+        final Key key;
+        final LogCallSite site;
+        final String shape;
+        final String exceptionName;
+        final long windowStart;
+        // The calls counted after the first one; negative once the summary is taken.
+        final AtomicLong repeats = new AtomicLong();
+        final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        final AtomicLong max = new AtomicLong();
+
+        Entry(Key key, LogCallSite site, String shape, Throwable exception, long windowStart) {
+            this.key = key;
+            this.site = site;
+            this.shape = shape;
+            this.exceptionName = exception == null ? null : exception.getClass().getSimpleName();
+            this.windowStart = windowStart;
+        }
+
+        /**
+         * @return false if the summary was already taken, and the call must be logged.
+         */
+        boolean add(long duration) {
+            // Min and max first: a call counted before the summary is taken is also in its min and max.
+            if (duration < min.get()) {
+                min.accumulateAndGet(duration, Math::min);
+            }
+            if (duration > max.get()) {
+                max.accumulateAndGet(duration, Math::max);
+            }
+            return repeats.getAndIncrement() >= 0;
+        }
+    }
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final long windowNanos;
+    private final int maxEntries;
+
+    private ScheduledExecutorService scheduler;
+
+    LogCallCoalescer(long windowNanos, int maxEntries) {
+        this.windowNanos = windowNanos;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Counts a call in the window of its shape.
+     *
+     * @return true if the call is coalesced and must not be logged; false if it must be logged, as the first of
+     * its window or because it is not tracked.
+     */
+    boolean coalesce(LogCallSite site, LogCallValues values, Throwable exception, long duration) {
+        if (windowNanos <= 0) {
+            return false;
+        }
+        Shape current = SHAPES.get();
+        if (current.text.length() > 0) {
+            // A value rendered by the call of this thread logged a call of its own.
+            current = new Shape();
+        }
+        StringBuilder shape = current.text;
+        try {
+            long hash = shape(site, values, exception, shape);
+            current.key.hash = hash;
+            long now = System.nanoTime();
+            Entry entry = entries.get(current.key);
+            if (entry != null) {
+                if (entry.site != site || !entry.shape.contentEquals(shape)) {
+                    // Two shapes with the same hash: not worth coalescing.
+                    return false;
+                }
+                if (now - entry.windowStart <= windowNanos && entry.add(duration)) {
+                    return true;
+                }
+                // The window expired: its summary comes before the first call of the next one.
+                summarize(entry);
+            }
+            if (entries.size() >= maxEntries) {
+                flushExpired(now);
+                if (entries.size() >= maxEntries) {
+                    return false;
+                }
+            }
+            Entry created = new Entry(new Key(hash), site, shape.toString(), exception, now);
+            entry = entries.putIfAbsent(created.key, created);
+            if (entry != null) {
+                // Another thread logged the first call of the window.
+                return entry.site == site && entry.shape.equals(created.shape) && entry.add(duration);
+            }
+            startSweeper();
+            return false;
+        } finally {
+            shape.setLength(0);
+        }
+    }
+
+    /**
+     * Logs the summaries of the windows expired at the given time.
+     */
+    void flushExpired(long now) {
+        for (Entry entry : entries.values()) {
+            if (now - entry.windowStart > windowNanos) {
+                summarize(entry);
+            }
+        }
+    }
+
+    /**
+     * Removes a window and logs its summary, unless another thread already did or no call was coalesced.
+     */
+    private void summarize(Entry entry) {
+        if (!entries.remove(entry.key, entry)) {
+            return;
+        }
+        long repeats = entry.repeats.getAndSet(Long.MIN_VALUE);
+        if (repeats <= 0) {
+            return;
+        }
+        StringBuilder line = new StringBuilder();
+        line.append("Method '").append(entry.site.getMethodName()).append("'");
+        if (entry.exceptionName != null) {
+            line.append(" | Threw Exception: ").append(entry.exceptionName);
+        }
+        line.append(" | Repeated: ").append(repeats)
+                .append(" | Window: ").append(TimeUnit.NANOSECONDS.toMillis(windowNanos)).append("ms");
+        LogCallAdvice.appendDuration(line.append(" | Min: "), entry.min.get());
+        LogCallAdvice.appendDuration(line.append(" | Max: "), entry.max.get());
+        try {
+            LogCallAdvice.log(entry.site.getLogger(), entry.site.getLevel(), line.toString());
+        } catch (RuntimeException e) {
+            LOGGER.error("LogCall: could not log the repeated calls of {}", entry.site.getMethodName(), e);
+        }
+    }
+
+    private synchronized void startSweeper() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LogCall-Coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(TimeUnit.MILLISECONDS.toNanos(10), windowNanos);
+        scheduler.scheduleAtFixedRate(() -> flushExpired(System.nanoTime()), period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Renders the shape of a call: its method, its exception class, and the arguments and return value its message
+     * logs, within the budget of a message. Nothing is rendered for the values the message leaves out, e.g. those
+     * a custom pattern does not use.
+     *
+     * @param shape The builder to render into, empty.
+     * @return The hash of the shape.
+     */
+    static long shape(LogCallSite site, LogCallValues values, Throwable exception, StringBuilder shape) {
+        shape.append(site.getId()).append('|');
+        if (exception != null) {
+            shape.append(exception.getClass().getName());
+        }
+        LogCallTemplate template = site.getTemplate();
+        boolean logsArguments = template != null ? template.usesArguments() : site.isLogParameters();
+        boolean logsResult = exception == null && (template != null ? template.usesReturn() : site.isLogReturn());
+        if (values != null && (logsArguments || logsResult)) {
+            LogCallOutput output = LogCallOutput.acquire(shape, shape.length());
+            try {
+                if (logsArguments && values.hasArguments()) {
+                    for (int i = 0; i < values.getArgumentCount(); i++) {
+                        output.append('|');
+                        values.appendArgument(output, i);
+                    }
+                }
+                if (logsResult && values.hasResult()) {
+                    output.append("|=");
+                    values.appendResult(output);
+                }
+            } finally {
+                output.release();
+            }
+        }
+        long hash = 1125899906842597L;
+        for (int i = 0; i < shape.length(); i++) {
+            hash = 31 * hash + shape.charAt(i);
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import org.apache.logging.log4j.status.StatusLogger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runtime overrides of the {@link LogCall} settings of single methods, registered as the JMX MBean
+ * {@code com.github.pourquoipas.logcall:type=Control}.
+ * <p>
+ * The overrides of a method are packed in one int of its {@link LogCallSite}, read once on method entry:
+ * a disabled method costs a single volatile read. Turning on {@code logParameters} or {@code logReturn} works for
+ * every method, as the woven code always captures the arguments and the return value of the calls it logs.
+ * <p>
+ * Methods are designated either by their id, which changes from one run to the next, or by a stable name:
+ * {@code <class>.<method>}, for all the methods of that name, or {@code <class>.<method><descriptor>}, as listed by
+ * {@link #getMethods()}. Methods are held weakly, so that their classes can be unloaded.
+ */
+public final class LogCallControl implements LogCallControlMBean {
+
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
+    // Layout of LogCallSite overrides: a disabled bit, the level ordinal + 1 (0 for none) and 2 bits per option.
+    static final int DISABLED = 1;
+    static final int LEVEL_SHIFT = 1;
+    static final int LEVEL_MASK = 7;
+    static final int PARAMETERS_SHIFT = 4;
+    static final int RETURN_SHIFT = 6;
+    static final int STACK_TRACE_SHIFT = 8;
+    static final int EXCEPTION_SHIFT = 10;
+    static final int OPTION_MASK = 3;
+    static final int OPTION_ON = 1;
+    static final int OPTION_OFF = 2;
+
+    private static final LogCallControl INSTANCE = new LogCallControl();
+
+    private final Map<Integer, WeakReference<LogCallSite>> sites = new ConcurrentHashMap<>();
+
+    /**
+     * The same sites, by method name and descriptor within each class, for {@link #find(Class, String, String)}.
+     * The map of a class is stored with the class, so it does not keep the class loaded.
+     */
+    private final ClassValue<Map<String, WeakReference<LogCallSite>>> sitesByClass = new ClassValue<Map<String, WeakReference<LogCallSite>>>() {
+        @Override
+        protected Map<String, WeakReference<LogCallSite>> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+    private boolean registered;
+
+    private LogCallControl() {
+    }
+
+    /**
+     * @return The switchboard of the methods of this JVM.
+     */
+    public static LogCallControl getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds a method to the switchboard, registering the MBean on first use.
+     */
+    static void register(LogCallSite site) {
+        WeakReference<LogCallSite> reference = new WeakReference<>(site);
+        INSTANCE.sites.put(site.getId(), reference);
+        INSTANCE.sitesByClass.get(site.getDeclaringClass()).put(site.getMethodName() + site.getDescriptor(), reference);
+        INSTANCE.registerMBean();
+    }
+
+    /**
+     * Looks up a site in constant time, as it runs in the type initializer of every woven class.
+     *
+     * @return The site of a woven method, or null if its class was not initialized yet.
+     */
+    static LogCallSite find(Class<?> declaringClass, String methodName, String descriptor) {
+        WeakReference<LogCallSite> reference = INSTANCE.sitesByClass.get(declaringClass).get(methodName + descriptor);
+        return reference == null ? null : reference.get();
+    }
+
+    /**
+     * @return The sites that are still loaded, forgetting the others.
+     */
+    private List<LogCallSite> sites() {
+        List<LogCallSite> live = new ArrayList<>(sites.size());
+        for (Map.Entry<Integer, WeakReference<LogCallSite>> entry : sites.entrySet()) {
+            LogCallSite site = entry.getValue().get();
+            if (site == null) {
+                sites.remove(entry.getKey(), entry.getValue());
+            } else {
+                live.add(site);
+            }
+        }
+        return live;
+    }
+
+    private synchronized void registerMBean() {
+        if (registered) {
+            return;
+        }
+        registered = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("com.github.pourquoipas.logcall:type=Control"));
+        } catch (JMException e) {
+            // Typically the library loaded by another class loader: its methods stay controllable through its own MBean.
+            LOGGER.warn("LogCall: could not register the control MBean", e);
+        }
+    }
+
+    @Override
+    public String[] getMethods() {
+        List<String> methods = new ArrayList<>();
+        for (LogCallSite site : sites()) {
+            methods.add(site.getId() + " " + site.getDeclaringClass().getName() + "." + site.getMethodName() + site.getDescriptor()
+                    + ((site.getOverrides() & DISABLED) != 0 ? " disabled" : "")
+                    + " level=" + site.getLevel()
+                    + " logParameters=" + site.isLogParameters()
+                    + " logReturn=" + site.isLogReturn()
+                    + " logStackTrace=" + site.isLogStackTrace()
+                    + " logException=" + site.isLogException());
+        }
+        methods.sort(null);
+        return methods.toArray(new String[0]);
+    }
+
+    @Override
+    public int getMethodId(String className, String methodName) {
+        int id = -1;
+        for (LogCallSite site : sites()) {
+            if (site.getDeclaringClass().getName().equals(className) && site.getMethodName().equals(methodName)
+                    && (id < 0 || site.getId() < id)) {
+                id = site.getId();
+            }
+        }
+        return id;
+    }
+
+    @Override
+    public void setEnabled(int id, boolean enabled) {
+        site(id).updateOverrides(DISABLED, enabled ? 0 : DISABLED);
+    }
+
+    @Override
+    public void setEnabled(String method, boolean enabled) {
+        for (LogCallSite site : sites(method)) {
+            site.updateOverrides(DISABLED, enabled ? 0 : DISABLED);
+        }
+    }
+
+    @Override
+    public void setLevel(int id, String level) {
+        int value = levelValue(level);
+        site(id).updateOverrides(LEVEL_MASK << LEVEL_SHIFT, value << LEVEL_SHIFT);
+    }
+
+    @Override
+    public void setLevel(String method, String level) {
+        int value = levelValue(level);
+        for (LogCallSite site : sites(method)) {
+            site.updateOverrides(LEVEL_MASK << LEVEL_SHIFT, value << LEVEL_SHIFT);
+        }
+    }
+
+    private static int levelValue(String level) {
+        return level == null || level.isEmpty() ? 0 : LogLevel.valueOf(level.trim().toUpperCase()).ordinal() + 1;
+    }
+
+    @Override
+    public void setOption(int id, String option, String value) {
+        int shift = optionShift(option);
+        int state = optionState(value);
+        site(id).updateOverrides(OPTION_MASK << shift, state << shift);
+    }
+
+    @Override
+    public void setOption(String method, String option, String value) {
+        int shift = optionShift(option);
+        int state = optionState(value);
+        for (LogCallSite site : sites(method)) {
+            site.updateOverrides(OPTION_MASK << shift, state << shift);
+        }
+    }
+
+    private static int optionShift(String option) {
+        switch (option) {
+            case "logParameters": return PARAMETERS_SHIFT;
+            case "logReturn":     return RETURN_SHIFT;
+            case "logStackTrace": return STACK_TRACE_SHIFT;
+            case "logException":  return EXCEPTION_SHIFT;
+            default: throw new IllegalArgumentException("Unknown option " + option);
+        }
+    }
+
+    private static int optionState(String value) {
+        switch (value) {
+            case "true":    return OPTION_ON;
+            case "false":   return OPTION_OFF;
+            case "default": return 0;
+            default: throw new IllegalArgumentException("Expected true, false or default: " + value);
+        }
+    }
+
+    @Override
+    public void reset(int id) {
+        site(id).updateOverrides(-1, 0);
+    }
+
+    @Override
+    public void reset(String method) {
+        for (LogCallSite site : sites(method)) {
+            site.updateOverrides(-1, 0);
+        }
+    }
+
+    @Override
+    public void resetAll() {
+        for (LogCallSite site : sites()) {
+            site.updateOverrides(-1, 0);
+        }
+    }
+
+    private LogCallSite site(int id) {
+        WeakReference<LogCallSite> reference = sites.get(id);
+        LogCallSite site = reference == null ? null : reference.get();
+        if (site == null) {
+            throw new IllegalArgumentException("No @LogCall method with id " + id);
+        }
+        return site;
+    }
+
+    /**
+     * @param method {@code <class>.<method>} or {@code <class>.<method><descriptor>}.
+     * @return The matching sites, in every class loader.
+     */
+    private List<LogCallSite> sites(String method) {
+        List<LogCallSite> matching = new ArrayList<>();
+        for (LogCallSite site : sites()) {
+            String name = site.getDeclaringClass().getName() + "." + site.getMethodName();
+            if (method.equals(name) || method.equals(name + site.getDescriptor())) {
+                matching.add(site);
+            }
+        }
+        if (matching.isEmpty()) {
+            throw new IllegalArgumentException("No @LogCall method " + method);
+        }
+        return matching;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+/**
+ * JMX switchboard of the methods annotated with {@link LogCall}. Methods are designated by their id, listed by
+ * {@link #getMethods()}, or by a name that does not change between runs: {@code <class>.<method>} for all the
+ * methods of that name, or {@code <class>.<method><descriptor>} for one of them, e.g.
+ * {@code com.example.Service.find(J)Ljava/lang/String;}. Overrides apply from the next call and last until they are
+ * reset or the JVM stops.
+ */
+public interface LogCallControlMBean {
+
+    /**
+     * @return One line per method: its id, class, name, descriptor and current settings.
+     */
+    String[] getMethods();
+
+    /**
+     * @return The id of the first method with the given name in the given class, or -1 if there is none.
+     */
+    int getMethodId(String className, String methodName);
+
+    /**
+     * Disables or enables the logging of a method. A disabled method is not timed, captured or logged.
+     */
+    void setEnabled(int id, boolean enabled);
+
+    void setEnabled(String method, boolean enabled);
+
+    /**
+     * Overrides the level of a method.
+     *
+     * @param level A {@link LogLevel} name, or an empty string to use the level of the annotation again.
+     */
+    void setLevel(int id, String level);
+
+    void setLevel(String method, String level);
+
+    /**
+     * Overrides an option of a method.
+     *
+     * @param option {@code logParameters}, {@code logReturn}, {@code logStackTrace} or {@code logException}.
+     * @param value  {@code true}, {@code false}, or {@code default} to use the value of the annotation again.
+     */
+    void setOption(int id, String option, String value);
+
+    void setOption(String method, String option, String value);
+
+    /**
+     * Removes the overrides of a method.
+     */
+    void reset(int id);
+
+    void reset(String method);
+
+    /**
+     * Removes the overrides of every method.
+     */
+    void resetAll();
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the stack traces logged by methods with {@link LogCall#logException()}, so that an exception thrown
+ * over and over from the same place is logged in full only once per window.
+ * <p>
+ * Exceptions are identified by a fingerprint of their class and stack frames, causes included; the message is
+ * ignored. The first occurrence in a window is logged in full with a short id, the following ones with the id and
+ * their occurrence number only. The cache is configured with system properties:
+ * <ul>
+ *     <li>{@code logcall.exception.dedupWindow}: length of the window in seconds, 0 to always log the full
+ *     stack trace (default 60).</li>
+ *     <li>{@code logcall.exception.dedupSize}: maximum number of fingerprints remembered (default 1024). When it is
+ *     reached, new exceptions are logged in full until a window expires.</li>
+ * </ul>
+ */
+final class LogCallExceptionCache {
+
+    static final LogCallExceptionCache INSTANCE = new LogCallExceptionCache(
+            TimeUnit.SECONDS.toNanos(Long.getLong("logcall.exception.dedupWindow", 60)),
+            Integer.getInteger("logcall.exception.dedupSize", 1024));
+
+    /** Causes beyond this depth do not change the fingerprint. */
+    private static final int MAX_CAUSES = 16;
+
+    private static final class Entry {
+        final long windowStart;
+        final AtomicLong count = new AtomicLong();
+
+        Entry(long windowStart) {
+            this.windowStart = windowStart;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final long windowNanos;
+    private final int maxEntries;
+
+    LogCallExceptionCache(long windowNanos, int maxEntries) {
+        this.windowNanos = windowNanos;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return The fingerprint of an exception, computed from its class and frames and those of its causes.
+     */
+    static long fingerprint(Throwable exception) {
+        long hash = 1125899906842597L;
+        int depth = 0;
+        for (Throwable t = exception; t != null && depth < MAX_CAUSES; t = t.getCause() == t ? null : t.getCause(), depth++) {
+            hash = 31 * hash + t.getClass().getName().hashCode();
+            for (StackTraceElement frame : t.getStackTrace()) {
+                hash = 31 * hash + frame.hashCode();
+            }
+        }
+        // Spread the bits, so that the short id taken from the low bits is as unique as the fingerprint.
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Appends the short id of a fingerprint: 8 hexadecimal digits.
+     */
+    static StringBuilder appendId(StringBuilder sb, long fingerprint) {
+        String hex = Integer.toHexString((int) fingerprint);
+        for (int i = hex.length(); i < 8; i++) {
+            sb.append('0');
+        }
+        return sb.append(hex);
+    }
+
+    /**
+     * Counts an occurrence of an exception.
+     *
+     * @param fingerprint The fingerprint of the exception.
+     * @return The occurrence number in the current window: 1 when the stack trace must be logged in full,
+     * or 0 when the exception is not tracked and must be logged in full without an id.
+     */
+    long record(long fingerprint) {
+        if (windowNanos <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        Entry entry = entries.get(fingerprint);
+        if (entry != null && now - entry.windowStart > windowNanos) {
+            // The window expired: the next occurrence is logged in full again.
+            entries.remove(fingerprint, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            if (entries.size() >= maxEntries) {
+                evictExpired(now);
+                if (entries.size() >= maxEntries) {
+                    return 0;
+                }
+            }
+            Entry created = new Entry(now);
+            entry = entries.putIfAbsent(fingerprint, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        return entry.count.incrementAndGet();
+    }
+
+    private void evictExpired(long now) {
+        entries.values().removeIf(entry -> now - entry.windowStart > windowNanos);
+    }
+}
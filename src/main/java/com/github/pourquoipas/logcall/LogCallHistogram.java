@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free, preallocated latency histogram for a method logged with {@link LogCall#aggregate()}.
+ * <p>
+ * Durations in nanoseconds are counted in log-linear buckets: values below 64 have their own bucket, larger
+ * values are split in 32 sub-buckets per power of two, so every percentile is reported with a relative error
+ * below 3.2%. Recording is a single atomic increment. {@link #snapshotAndReset()} moves the counts of the
+ * current interval into a {@link Snapshot}; a call recorded concurrently is counted in exactly one interval.
+ * The exact min and max are reset separately from the counts, so a snapshot keeps them only when they fall in
+ * its lowest and highest non-empty buckets, and otherwise takes the bounds of those buckets.
+ * <p>
+ * The histogram is also a JMX MBean exposing the last completed interval.
+ */
+public final class LogCallHistogram implements LogCallHistogramMBean {
+
+    private static final int LINEAR_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+    private final LongAdder errors = new LongAdder();
+
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalErrors = new LongAdder();
+
+    private volatile Snapshot lastSnapshot = new Snapshot(new long[BUCKETS], 0, 0, 0, 0);
+
+    /**
+     * Records the duration of a call.
+     *
+     * @param durationNanos The duration in nanoseconds.
+     * @param error         true if the call threw an exception.
+     */
+    public void record(long durationNanos, boolean error) {
+        long value = Math.max(0, durationNanos);
+        counts.incrementAndGet(indexOf(value));
+        // Only write the shared min and max when they change.
+        if (value < min.get()) {
+            min.accumulateAndGet(value, Math::min);
+        }
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+        if (error) {
+            errors.increment();
+        }
+    }
+
+    /**
+     * Takes the calls recorded since the previous snapshot and starts a new interval.
+     *
+     * @return The snapshot of the interval that just ended.
+     */
+    public Snapshot snapshotAndReset() {
+        long[] snapshotCounts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts.get(i) != 0) {
+                snapshotCounts[i] = counts.getAndSet(i, 0);
+                count += snapshotCounts[i];
+            }
+        }
+        long errorCount = errors.sumThenReset();
+        Snapshot snapshot = new Snapshot(snapshotCounts, count, errorCount,
+                min.getAndSet(Long.MAX_VALUE), max.getAndSet(0));
+        totalCount.add(count);
+        totalErrors.add(errorCount);
+        lastSnapshot = snapshot;
+        return snapshot;
+    }
+
+    static int indexOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        // Keep the 6 most significant bits: the leading one selects the power of two, the other 5 the sub-bucket.
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowestValueAt(int index) {
+        return index == 0 ? 0 : highestValueAt(index - 1) + 1;
+    }
+
+    static long highestValueAt(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long mantissa = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * The calls recorded during one interval.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long errorCount;
+        private final long min;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long errorCount, long min, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.errorCount = errorCount;
+            if (count == 0) {
+                this.min = 0;
+                this.max = 0;
+                return;
+            }
+            // A call recorded during the snapshot can be in the counts but not in min and max, or the reverse:
+            // clamp them to the buckets that were actually counted.
+            int lowest = 0;
+            while (counts[lowest] == 0) {
+                lowest++;
+            }
+            int highest = counts.length - 1;
+            while (counts[highest] == 0) {
+                highest--;
+            }
+            this.min = min >= lowestValueAt(lowest) && min <= highestValueAt(lowest) ? min : lowestValueAt(lowest);
+            long highestMax = max >= lowestValueAt(highest) && max <= highestValueAt(highest) ? max : highestValueAt(highest);
+            this.max = Math.max(this.min, highestMax);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param percentile The percentile, between 0 and 100.
+         * @return The duration in nanoseconds below which the given percentage of the calls fall.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.max(min, Math.min(max, highestValueAt(i)));
+                }
+            }
+            return max;
+        }
+    }
+
+    // --- JMX attributes, computed on the last completed interval ---
+
+    @Override
+    public long getCount() {
+        return lastSnapshot.getCount();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return lastSnapshot.getErrorCount();
+    }
+
+    @Override
+    public long getMinNanos() {
+        return lastSnapshot.getMin();
+    }
+
+    @Override
+    public long getP50Nanos() {
+        return lastSnapshot.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getP90Nanos() {
+        return lastSnapshot.getValueAtPercentile(90);
+    }
+
+    @Override
+    public long getP99Nanos() {
+        return lastSnapshot.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getP999Nanos() {
+        return lastSnapshot.getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public long getMaxNanos() {
+        return lastSnapshot.getMax();
+    }
+
+    @Override
+    public long getTotalCount() {
+        return totalCount.sum();
+    }
+
+    @Override
+    public long getTotalErrorCount() {
+        return totalErrors.sum();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+/**
+ * JMX view of a {@link LogCallHistogram}. Durations are in nanoseconds and, except for the totals,
+ * refer to the last completed aggregation interval.
+ */
+public interface LogCallHistogramMBean {
+
+    long getCount();
+
+    long getErrorCount();
+
+    long getMinNanos();
+
+    long getP50Nanos();
+
+    long getP90Nanos();
+
+    long getP99Nanos();
+
+    long getP999Nanos();
+
+    long getMaxNanos();
+
+    long getTotalCount();
+
+    long getTotalErrorCount();
+}
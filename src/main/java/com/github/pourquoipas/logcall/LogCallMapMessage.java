@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import org.apache.logging.log4j.message.MapMessage;
+import org.apache.logging.log4j.util.BiConsumer;
+import org.apache.logging.log4j.util.IndexedReadOnlyStringMap;
+import org.apache.logging.log4j.util.TriConsumer;
+
+import java.util.Map;
+
+/**
+ * The structured Log4j message of a logged call, used instead of {@link LogCallMessage} when the
+ * {@code logcall.structured} system property is true.
+ * <p>
+ * The call is logged as key-value pairs, so that JSON and other structured layouts write fields that downstream
+ * pipelines read without parsing a text:
+ * <ul>
+ *     <li>{@code class}, {@code method} and {@code durationNanos};</li>
+ *     <li>{@code param.<name>} for each argument with {@code logParameters}, {@code return} with {@code logReturn};
+ *     primitives are kept as numbers and booleans, other objects are rendered like in text messages, within the
+ *     budget of one message;</li>
+ *     <li>{@code exception}, the class and message of the exception; when the method logs it, the exception is also
+ *     attached to the event, and {@code exceptionId} and {@code exceptionOccurrence} identify repeated stack traces;</li>
+ *     <li>{@code message}, the rendered {@link LogCall#customLog()} pattern, {@code callStack} and {@code thread}
+ *     when they apply;</li>
+ *     <li>{@code spanId}, {@code parentSpanId}, {@code depth} and {@code selfNanos} when calls are tracked,
+ *     see {@link LogCallSpans}.</li>
+ * </ul>
+ * The message keeps a copy of the call data, primitives unboxed, and builds the map the first time it is read:
+ * an event dropped by a filter or an appender threshold never renders nor boxes anything. Unlike
+ * {@link LogCallMessage}, a new instance is created per call, as Log4j keeps map messages as they are.
+ */
+public final class LogCallMapMessage extends MapMessage<LogCallMapMessage, Object> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * true if calls are logged as structured messages.
+     */
+    static final boolean ENABLED = Boolean.getBoolean("logcall.structured");
+
+    private transient LogCallSite site;
+    private transient LogCallValues values;
+    private transient Throwable exception;
+    private transient StackTraceElement[] callStack;
+    private transient Thread thread;
+    private transient LogCallSpan span;
+    private final long duration;
+    private final long exceptionFingerprint;
+    private final long exceptionOccurrence;
+
+    /**
+     * Set once the map holds the call; Log4j hands messages to other threads through its queues, which
+     * publish this flag together with the call data.
+     */
+    private boolean filled;
+
+    private LogCallMapMessage(int capacity, long duration, long exceptionFingerprint, long exceptionOccurrence) {
+        super(capacity);
+        this.duration = duration;
+        this.exceptionFingerprint = exceptionFingerprint;
+        this.exceptionOccurrence = exceptionOccurrence;
+    }
+
+    /**
+     * Creates the message of a call. The values and the span are copied, since those of the calling thread are
+     * reused by its next call.
+     *
+     * @param site      The static metadata of the method.
+     * @param values    The captured arguments and return value, or null if they were not captured.
+     * @param exception The exception thrown by the method, or null.
+     * @param duration  The duration of the call in nanoseconds.
+     * @param callStack The captured call stack when the method logs it, otherwise null.
+     * @param thread    The thread that made the call when it is logged from another thread, otherwise null.
+     * @param exceptionFingerprint The fingerprint of the exception, see {@link LogCallExceptionCache}.
+     * @param exceptionOccurrence  The occurrence of the exception in the deduplication window, or 0.
+     * @param span                 The span of the call when calls are tracked, otherwise null.
+     * @return The message.
+     */
+    public static LogCallMapMessage of(LogCallSite site, LogCallValues values, Throwable exception, long duration,
+                                       StackTraceElement[] callStack, Thread thread, long exceptionFingerprint, long exceptionOccurrence,
+                                       LogCallSpan span) {
+        boolean logsValues = site.isLogParameters() || site.isLogReturn() || site.getTemplate() != null;
+        int argumentCount = values != null && values.hasArguments() && site.isLogParameters() ? values.getArgumentCount() : 0;
+        LogCallMapMessage message = new LogCallMapMessage(argumentCount + 8, duration, exceptionFingerprint, exceptionOccurrence);
+        message.site = site;
+        if (values != null && logsValues) {
+            message.values = new LogCallValues();
+            message.values.copyFrom(values);
+        }
+        message.exception = exception;
+        message.callStack = callStack;
+        message.thread = thread;
+        message.span = span == null ? null : new LogCallSpan().copyFrom(span);
+        return message;
+    }
+
+    /**
+     * @return The duration of the call in nanoseconds, without building the map.
+     */
+    public long getDurationNanos() {
+        return duration;
+    }
+
+    /**
+     * Builds the map from the call data, then drops the call data.
+     */
+    private void fill() {
+        if (filled) {
+            return;
+        }
+        filled = true;
+        super.with("class", site.getDeclaringClass().getName())
+                .with("method", site.getMethodName())
+                .with("durationNanos", duration);
+        // Rendered values share the budget of one message, as in text messages.
+        StringBuilder text = new StringBuilder();
+        LogCallOutput output = LogCallOutput.acquire(text, 0);
+        try {
+            if (values != null && values.hasArguments() && site.isLogParameters()) {
+                String[] keys = site.getParameterKeys();
+                for (int i = 0; i < values.getArgumentCount(); i++) {
+                    put(keys[i], i, output, text);
+                }
+            }
+            if (exception == null && values != null && values.hasResult() && site.isLogReturn()) {
+                put("return", values.getArgumentCount(), output, text);
+            }
+        } finally {
+            output.release();
+        }
+        if (exception != null) {
+            super.with("exception", exception.toString());
+            if (exceptionOccurrence > 0) {
+                super.with("exceptionId", LogCallExceptionCache.appendId(new StringBuilder(), exceptionFingerprint).toString())
+                        .with("exceptionOccurrence", exceptionOccurrence);
+            }
+        }
+        if (site.getTemplate() != null) {
+            StringBuilder message = new StringBuilder();
+            site.getTemplate().appendTo(message, site.getClassName(), site.getMethodName(), values, exception);
+            super.with("message", message.toString());
+        }
+        if (callStack != null) {
+            StringBuilder frames = new StringBuilder();
+            for (StackTraceElement frame : callStack) {
+                if (frames.length() > 0) {
+                    frames.append('\n');
+                }
+                frames.append(frame);
+            }
+            super.with("callStack", frames.toString());
+        }
+        if (thread != null) {
+            super.with("thread", thread.getName());
+        }
+        if (span != null) {
+            super.with("spanId", LogCallSpan.appendId(new StringBuilder(), span.getSpanId()).toString())
+                    .with("depth", span.getDepth())
+                    .with("selfNanos", span.getSelfNanos());
+            if (span.getParentId() != 0) {
+                super.with("parentSpanId", LogCallSpan.appendId(new StringBuilder(), span.getParentId()).toString());
+            }
+        }
+        site = null;
+        values = null;
+        exception = null;
+        callStack = null;
+        thread = null;
+        span = null;
+    }
+
+    /**
+     * Puts a value with the setter of its type: numbers, booleans, characters and short strings are kept as they
+     * are, any other object is rendered.
+     */
+    private void put(String key, int index, LogCallOutput output, StringBuilder text) {
+        long value = values.getPrimitive(index);
+        switch (values.getType(index)) {
+            case 'Z': super.with(key, value != 0); return;
+            case 'C': super.with(key, (char) value); return;
+            case 'B': super.with(key, (byte) value); return;
+            case 'S': super.with(key, (short) value); return;
+            case 'I': super.with(key, (int) value); return;
+            case 'J': super.with(key, value); return;
+            case 'F': super.with(key, Float.intBitsToFloat((int) value)); return;
+            case 'D': super.with(key, Double.longBitsToDouble(value)); return;
+            default: break;
+        }
+        Object reference = values.getReference(index);
+        if (reference == null || reference instanceof Number || reference instanceof Boolean || reference instanceof Character
+                || reference instanceof String && ((String) reference).length() <= LogCallOutput.MAX_CHARS) {
+            super.with(key, reference);
+            return;
+        }
+        int start = text.length();
+        output.render(reference);
+        super.with(key, text.substring(start));
+    }
+
+    private Object writeReplace() {
+        fill();
+        return this;
+    }
+
+    // --- Every read builds the map first ---
+
+    @Override
+    public Map<String, Object> getData() {
+        fill();
+        return super.getData();
+    }
+
+    @Override
+    public IndexedReadOnlyStringMap getIndexedReadOnlyStringMap() {
+        fill();
+        return super.getIndexedReadOnlyStringMap();
+    }
+
+    @Override
+    public boolean containsKey(String candidateKey) {
+        fill();
+        return super.containsKey(candidateKey);
+    }
+
+    @Override
+    public String get(String key) {
+        fill();
+        return super.get(key);
+    }
+
+    @Override
+    public String asString() {
+        fill();
+        return super.asString();
+    }
+
+    @Override
+    public String asString(String format) {
+        fill();
+        return super.asString(format);
+    }
+
+    @Override
+    public <CV> void forEach(BiConsumer<String, ? super CV> action) {
+        fill();
+        super.forEach(action);
+    }
+
+    @Override
+    public <CV, S> void forEach(TriConsumer<String, ? super CV, S> action, S state) {
+        fill();
+        super.forEach(action, state);
+    }
+
+    @Override
+    public void asXml(StringBuilder sb) {
+        fill();
+        super.asXml(sb);
+    }
+
+    @Override
+    public String getFormattedMessage() {
+        fill();
+        return super.getFormattedMessage();
+    }
+
+    @Override
+    public String getFormattedMessage(String[] formats) {
+        fill();
+        return super.getFormattedMessage(formats);
+    }
+
+    @Override
+    public void formatTo(StringBuilder buffer) {
+        fill();
+        super.formatTo(buffer);
+    }
+
+    @Override
+    public void formatTo(String[] formats, StringBuilder buffer) {
+        fill();
+        super.formatTo(formats, buffer);
+    }
+
+    @Override
+    public String toString() {
+        fill();
+        return super.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        fill();
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        fill();
+        return super.hashCode();
+    }
+
+    @Override
+    public void clear() {
+        fill();
+        super.clear();
+    }
+
+    @Override
+    public Object[] getParameters() {
+        fill();
+        return super.getParameters();
+    }
+
+    @Override
+    public LogCallMapMessage with(String candidateKey, boolean value) {
+        fill();
+        return super.with(candidateKey, value);
+    }
+
+    @Override
+    public LogCallMapMessage with(String candidateKey, byte value) {
+        fill();
+        return super.with(candidateKey, value);
+    }
+
+    @Override
+    public LogCallMapMessage with(String candidateKey, char value) {
+        fill();
+        return super.with(candidateKey, value);
+    }
+
+    @Override
+    public LogCallMapMessage with(String candidateKey, double value) {
+        fill();
+        return super.with(candidateKey, value);
+    }
+
+    @Override
+    public LogCallMapMessage with(String candidateKey, float value) {
+        fill();
+        return super.with(candidateKey, value);
+    }
+
+    @Override
+    public LogCallMapMessage with(String candidateKey, int value) {
+        fill();
+        return super.with(candidateKey, value);
+    }
+
+    @Override
+    public LogCallMapMessage with(String candidateKey, long value) {
+        fill();
+        return super.with(candidateKey, value);
+    }
+
+    @Override
+    public LogCallMapMessage with(String candidateKey, short value) {
+        fill();
+        return super.with(candidateKey, value);
+    }
+
+    @Override
+    public LogCallMapMessage with(String candidateKey, Object value) {
+        fill();
+        return super.with(candidateKey, value);
+    }
+
+    @Override
+    public LogCallMapMessage with(String candidateKey, String value) {
+        fill();
+        return super.with(candidateKey, value);
+    }
+
+    @Override
+    public void put(String candidateKey, String value) {
+        fill();
+        super.put(candidateKey, value);
+    }
+
+    @Override
+    public void putAll(Map<String, String> map) {
+        fill();
+        super.putAll(map);
+    }
+
+    @Override
+    public String remove(String key) {
+        fill();
+        return super.remove(key);
+    }
+}
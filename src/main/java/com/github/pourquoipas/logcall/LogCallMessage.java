@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ReusableMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.Constants;
+
+/**
+ * The Log4j message of a logged call.
+ * <p>
+ * It only keeps references to the call data: the text is rendered by {@link #formatTo(StringBuilder)} directly
+ * into the buffer of the log event or of the layout, so no intermediate String is built. When Log4j runs
+ * with thread locals enabled (its garbage-free mode), one instance per thread is reused across calls.
+ * Log4j copies reusable messages before handing them to another thread (async loggers format them,
+ * async appenders take a {@link #memento()}), so reusing the instance after the logger returns is safe.
+ */
+public final class LogCallMessage implements ReusableMessage {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final ThreadLocal<LogCallMessage> REUSABLE = Constants.ENABLE_THREADLOCALS ? new ThreadLocal<>() : null;
+
+    private transient LogCallSite site;
+    private transient LogCallValues values;
+    private transient Throwable exception;
+    private transient StackTraceElement[] callStack;
+    private transient Thread thread;
+    private long duration;
+    private long exceptionFingerprint;
+    private long exceptionOccurrence;
+    /** A copy of the span of the call, as the span of the thread is reused by its next call. */
+    private final LogCallSpan span = new LogCallSpan();
+    private boolean hasSpan;
+
+    /**
+     * Set while the message is being logged, so that a call logged while rendering it gets its own instance.
+     */
+    private transient boolean inUse;
+
+    /**
+     * Returns a message for the given call, reusing the instance of the current thread when possible.
+     * The message must be {@link #release() released} once the logger returns.
+     *
+     * @param site      The static metadata of the method.
+     * @param values    The captured arguments and return value, or null if they were not captured.
+     * @param exception The exception thrown by the method, or null.
+     * @param duration  The duration of the call in nanoseconds.
+     * @param callStack The captured call stack when the method logs it, otherwise null.
+     * @param thread    The thread that made the call when it is logged from another thread, otherwise null.
+     * @param exceptionFingerprint The fingerprint of the exception, see {@link LogCallExceptionCache}.
+     * @param exceptionOccurrence  The occurrence of the exception in the deduplication window, or 0.
+     * @param span                 The span of the call when calls are tracked, otherwise null.
+     * @return The message.
+     */
+    public static LogCallMessage acquire(LogCallSite site, LogCallValues values, Throwable exception, long duration, StackTraceElement[] callStack, Thread thread,
+                                         long exceptionFingerprint, long exceptionOccurrence, LogCallSpan span) {
+        LogCallMessage message = null;
+        if (REUSABLE != null) {
+            message = REUSABLE.get();
+            if (message == null) {
+                message = new LogCallMessage();
+                REUSABLE.set(message);
+            } else if (message.inUse) {
+                message = null;
+            }
+        }
+        if (message == null) {
+            message = new LogCallMessage();
+        }
+        message.site = site;
+        message.values = values;
+        message.exception = exception;
+        message.duration = duration;
+        message.callStack = callStack;
+        message.thread = thread;
+        message.exceptionFingerprint = exceptionFingerprint;
+        message.exceptionOccurrence = exceptionOccurrence;
+        message.hasSpan = span != null;
+        if (span != null) {
+            message.span.copyFrom(span);
+        }
+        message.inUse = true;
+        return message;
+    }
+
+    /**
+     * Drops the references to the call data so that they can be collected.
+     */
+    public void release() {
+        site = null;
+        values = null;
+        exception = null;
+        callStack = null;
+        thread = null;
+        inUse = false;
+    }
+
+    @Override
+    public void formatTo(StringBuilder buffer) {
+        LogCallAdvice.appendLogMessage(buffer, site, values, exception, duration, callStack, thread,
+                exceptionFingerprint, exceptionOccurrence, hasSpan ? span : null);
+    }
+
+    @Override
+    public String getFormattedMessage() {
+        StringBuilder buffer = new StringBuilder();
+        formatTo(buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * @return The custom log pattern of the method, empty if it uses the default message.
+     */
+    @Override
+    public String getFormat() {
+        return site == null ? "" : site.getCustomLog();
+    }
+
+    @Override
+    public Object[] getParameters() {
+        return null;
+    }
+
+    @Override
+    public Throwable getThrowable() {
+        return null;
+    }
+
+    @Override
+    public Object[] swapParameters(Object[] emptyReplacement) {
+        return emptyReplacement;
+    }
+
+    @Override
+    public short getParameterCount() {
+        return 0;
+    }
+
+    @Override
+    public Message memento() {
+        return new SimpleMessage(getFormattedMessage());
+    }
+
+    @Override
+    public String toString() {
+        return getFormattedMessage();
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.Constants;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Writes the values of a logged call into its message within a character budget.
+ * <p>
+ * Each value is written by the {@link LogCallRenderer} registered for its class: custom renderers found through
+ * {@link ServiceLoader} first, then the built-in ones for arrays, collections and maps, which write the first
+ * elements and the size, and finally {@link String#valueOf(Object)}. The renderer of each class is looked up once
+ * and cached in a {@link ClassValue}. The last one builds the whole {@code toString()} of the object before cutting
+ * it, except for a {@link CharSequence}, which is copied up to the budget: register a {@link LogCallRenderer} for
+ * classes whose text is large.
+ * <p>
+ * The budget applies to the whole message: once it holds {@code logcall.render.maxChars} characters (default 4096),
+ * the value being written is cut, {@code ...} is appended and nothing more is written. Collections and arrays show
+ * at most {@code logcall.render.maxElements} elements (default 16).
+ * <p>
+ * Messages are written with the instance of the current thread when Log4j runs with thread locals enabled,
+ * see {@link #acquire(StringBuilder, int)}.
+ */
+public final class LogCallOutput {
+
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
+    static final int MAX_CHARS = Math.max(16, Integer.getInteger("logcall.render.maxChars", 4096));
+    static final int MAX_ELEMENTS = Math.max(1, Integer.getInteger("logcall.render.maxElements", 16));
+
+    /** Values nested deeper than this, e.g. in a collection that contains itself, are not expanded. */
+    private static final int MAX_DEPTH = 8;
+
+    private static final String TRUNCATED = "...";
+
+    /**
+     * The longest text of a primitive value, e.g. {@code -9.223372036854776E-308}.
+     */
+    private static final int PRIMITIVE_CHARS = 24;
+
+    private static final List<LogCallRenderer> CUSTOM_RENDERERS = loadRenderers();
+
+    private static final ClassValue<LogCallRenderer> RENDERERS = new ClassValue<LogCallRenderer>() {
+        @Override
+        protected LogCallRenderer computeValue(Class<?> type) {
+            for (LogCallRenderer renderer : CUSTOM_RENDERERS) {
+                try {
+                    if (renderer.supports(type)) {
+                        return renderer;
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.error("LogCall: renderer {} failed on {}", renderer.getClass().getName(), type.getName(), e);
+                }
+            }
+            if (type.isArray()) {
+                return ARRAY;
+            }
+            if (Collection.class.isAssignableFrom(type)) {
+                return COLLECTION;
+            }
+            if (Map.class.isAssignableFrom(type)) {
+                return MAP;
+            }
+            return TO_STRING;
+        }
+    };
+
+    private static final ThreadLocal<LogCallOutput> REUSABLE = Constants.ENABLE_THREADLOCALS ? new ThreadLocal<>() : null;
+
+    private StringBuilder sb;
+    private int limit;
+    private int depth;
+    private boolean full;
+
+    /**
+     * Set while a message is being written, so that a call logged by a renderer gets its own instance.
+     */
+    private boolean inUse;
+
+    /**
+     * @param sb    The message.
+     * @param start The position where the message starts in the builder.
+     */
+    public LogCallOutput(StringBuilder sb, int start) {
+        reset(sb, start);
+    }
+
+    /**
+     * Returns an output for a message, reusing the instance of the current thread when possible.
+     * It must be {@link #release() released} once the values of the message are written.
+     *
+     * @param sb    The message.
+     * @param start The position where the message starts in the builder.
+     */
+    static LogCallOutput acquire(StringBuilder sb, int start) {
+        LogCallOutput output = null;
+        if (REUSABLE != null) {
+            output = REUSABLE.get();
+            if (output == null) {
+                output = new LogCallOutput(sb, start);
+                REUSABLE.set(output);
+            } else if (output.inUse) {
+                output = null;
+            } else {
+                output.reset(sb, start);
+            }
+        }
+        if (output == null) {
+            output = new LogCallOutput(sb, start);
+        }
+        output.inUse = true;
+        return output;
+    }
+
+    /**
+     * Drops the reference to the message so that it can be collected.
+     */
+    void release() {
+        sb = null;
+        inUse = false;
+    }
+
+    private void reset(StringBuilder sb, int start) {
+        this.sb = sb;
+        this.limit = start + MAX_CHARS < 0 ? Integer.MAX_VALUE : start + MAX_CHARS;
+        this.depth = 0;
+        this.full = false;
+    }
+
+    /**
+     * @return true once the budget is exhausted: any further write is ignored.
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * @return The maximum number of elements a renderer should write for a collection.
+     */
+    public int getMaxElements() {
+        return MAX_ELEMENTS;
+    }
+
+    /**
+     * Writes a value with the renderer of its class; null is written as {@code null}.
+     */
+    public LogCallOutput render(Object value) {
+        if (full) {
+            return this;
+        }
+        if (value == null) {
+            return append("null");
+        }
+        LogCallRenderer renderer = RENDERERS.get(value.getClass());
+        if (depth >= MAX_DEPTH && renderer != TO_STRING) {
+            return append(value.getClass().getSimpleName()).append("{...}");
+        }
+        depth++;
+        try {
+            renderer.render(value, this);
+        } catch (RuntimeException e) {
+            append("<").append(renderer.getClass().getSimpleName()).append(" threw ").append(e.toString()).append(">");
+        } finally {
+            depth--;
+        }
+        return this;
+    }
+
+    /**
+     * Writes text, cut at the end of the budget.
+     */
+    public LogCallOutput append(CharSequence text) {
+        if (full) {
+            return this;
+        }
+        int remaining = limit - sb.length();
+        if (text.length() <= remaining) {
+            sb.append(text);
+        } else {
+            sb.append(text, 0, Math.max(0, remaining)).append(TRUNCATED);
+            full = true;
+        }
+        return this;
+    }
+
+    public LogCallOutput append(char c) {
+        if (full) {
+            return this;
+        }
+        if (sb.length() < limit) {
+            sb.append(c);
+        } else {
+            sb.append(TRUNCATED);
+            full = true;
+        }
+        return this;
+    }
+
+    /**
+     * Writes a number without allocating, unless it has to be cut at the end of the budget.
+     */
+    public LogCallOutput append(long value) {
+        if (full) {
+            return this;
+        }
+        if (limit - sb.length() >= PRIMITIVE_CHARS) {
+            sb.append(value);
+            return this;
+        }
+        return append(Long.toString(value));
+    }
+
+    public LogCallOutput append(double value) {
+        if (full) {
+            return this;
+        }
+        if (limit - sb.length() >= PRIMITIVE_CHARS) {
+            sb.append(value);
+            return this;
+        }
+        return append(Double.toString(value));
+    }
+
+    public LogCallOutput append(float value) {
+        if (full) {
+            return this;
+        }
+        if (limit - sb.length() >= PRIMITIVE_CHARS) {
+            sb.append(value);
+            return this;
+        }
+        return append(Float.toString(value));
+    }
+
+    public LogCallOutput append(boolean value) {
+        return append(value ? "true" : "false");
+    }
+
+    private static List<LogCallRenderer> loadRenderers() {
+        List<LogCallRenderer> renderers = new ArrayList<>();
+        try {
+            for (LogCallRenderer renderer : ServiceLoader.load(LogCallRenderer.class, LogCallOutput.class.getClassLoader())) {
+                renderers.add(renderer);
+            }
+        } catch (ServiceConfigurationError e) {
+            LOGGER.error("LogCall: could not load the custom renderers", e);
+        }
+        return renderers;
+    }
+
+    // --- Built-in renderers ---
+
+    private static final LogCallRenderer TO_STRING = new LogCallRenderer() {
+        @Override
+        public boolean supports(Class<?> type) {
+            return true;
+        }
+
+        @Override
+        public void render(Object value, LogCallOutput output) {
+            output.append(value instanceof CharSequence ? (CharSequence) value : String.valueOf(value));
+        }
+    };
+
+    /** Writes {@code [1, 2, 3, ... (1024 elements)]}. */
+    private static final LogCallRenderer ARRAY = new LogCallRenderer() {
+        @Override
+        public boolean supports(Class<?> type) {
+            return type.isArray();
+        }
+
+        @Override
+        public void render(Object value, LogCallOutput output) {
+            int length = Array.getLength(value);
+            output.append('[');
+            int shown = Math.min(length, output.getMaxElements());
+            for (int i = 0; i < shown && !output.isFull(); i++) {
+                if (i > 0) {
+                    output.append(", ");
+                }
+                Object element = Array.get(value, i);
+                if (element == value) {
+                    output.append("(this Array)");
+                } else {
+                    output.render(element);
+                }
+            }
+            appendSize(output, shown, length, " elements").append(']');
+        }
+    };
+
+    /** Writes {@code [a, b, c, ... (250 elements)]}. */
+    private static final LogCallRenderer COLLECTION = new LogCallRenderer() {
+        @Override
+        public boolean supports(Class<?> type) {
+            return Collection.class.isAssignableFrom(type);
+        }
+
+        @Override
+        public void render(Object value, LogCallOutput output) {
+            Collection<?> collection = (Collection<?>) value;
+            int size = collection.size();
+            output.append('[');
+            int shown = 0;
+            for (Iterator<?> it = collection.iterator(); it.hasNext() && shown < output.getMaxElements() && !output.isFull(); shown++) {
+                if (shown > 0) {
+                    output.append(", ");
+                }
+                Object element = it.next();
+                if (element == value) {
+                    output.append("(this Collection)");
+                } else {
+                    output.render(element);
+                }
+            }
+            appendSize(output, shown, size, " elements").append(']');
+        }
+    };
+
+    /** Writes {@code {a=1, b=2, ... (300 entries)}}. */
+    private static final LogCallRenderer MAP = new LogCallRenderer() {
+        @Override
+        public boolean supports(Class<?> type) {
+            return Map.class.isAssignableFrom(type);
+        }
+
+        @Override
+        public void render(Object value, LogCallOutput output) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            int size = map.size();
+            output.append('{');
+            int shown = 0;
+            for (Iterator<? extends Map.Entry<?, ?>> it = map.entrySet().iterator(); it.hasNext() && shown < output.getMaxElements() && !output.isFull(); shown++) {
+                if (shown > 0) {
+                    output.append(", ");
+                }
+                Map.Entry<?, ?> entry = it.next();
+                output.render(entry.getKey() == value ? "(this Map)" : entry.getKey()).append('=')
+                        .render(entry.getValue() == value ? "(this Map)" : entry.getValue());
+            }
+            appendSize(output, shown, size, " entries").append('}');
+        }
+    };
+
+    private static LogCallOutput appendSize(LogCallOutput output, int shown, int size, String unit) {
+        if (shown < size) {
+            output.append(shown > 0 ? ", ... (" : "... (").append(size).append(unit).append(')');
+        }
+        return output;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the instrumentation of one method costs the application, when enabled with the {@code logcall.overhead}
+ * system property.
+ * <ul>
+ *     <li>invocations: the calls of the method;</li>
+ *     <li>emitted: the calls handed to the histogram, the binary log, the ring buffer or Log4j;</li>
+ *     <li>suppressed: the calls not logged, because the method is disabled, sampled out, rate limited or faster
+ *     than {@link LogCall#slowerThan()};</li>
+ *     <li>advice time: the time the calling thread spends in the advice: on entry, checking whether the call is
+ *     logged, then, for the calls that were timed, after the method returned, capturing, rendering and logging;
+ *     for an asynchronous method, also the time spent by the thread that completed its result.</li>
+ * </ul>
+ * The exit advice of a call found disabled on entry is a single test, and is not timed. Measuring adds two clock
+ * reads per call, which are counted in the advice time.
+ * The counters are striped {@link LongAdder}s, registered as MBeans under
+ * {@code com.github.pourquoipas.logcall:type=Overhead}. When {@code logcall.overhead.interval} is set to a number
+ * of seconds, a daemon thread also logs one line per method called in the interval, at INFO level with the logger
+ * of this class. Methods are held weakly: the report and the MBean of a method end when its class is unloaded.
+ */
+public final class LogCallOverhead implements LogCallOverheadMBean {
+
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
+    /**
+     * true if the overhead is measured. Read by the woven code, where the JIT folds it.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("logcall.overhead");
+
+    private static final long INTERVAL_SECONDS = Long.getLong("logcall.overhead.interval", 0);
+
+    private static final List<LogCallSiteReference> SITES = new CopyOnWriteArrayList<>();
+
+    private static ScheduledExecutorService scheduler;
+
+    private final LongAdder invocations = new LongAdder();
+    private final LongAdder emitted = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder adviceNanos = new LongAdder();
+
+    /** Invocations at the previous report, to skip the methods not called since. Only used by the report thread. */
+    private long reportedInvocations;
+
+    public void recordInvocation() {
+        invocations.increment();
+    }
+
+    public void recordEmitted() {
+        emitted.increment();
+    }
+
+    public void recordSuppressed() {
+        suppressed.increment();
+    }
+
+    public void recordAdviceTime(long nanos) {
+        adviceNanos.add(nanos);
+    }
+
+    /**
+     * Exposes the counters of a method, starting the report thread on first use when a report interval is set.
+     */
+    static synchronized void register(LogCallSite site) {
+        LogCallSiteReference.expunge(SITES);
+        SITES.add(LogCallSiteReference.registerMBean(site, "Overhead", site.getOverhead()));
+        if (scheduler == null && INTERVAL_SECONDS > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "LogCall-Overhead");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleAtFixedRate(LogCallOverhead::report, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Logs the overhead of every method called since the previous report. Called by the report thread.
+     */
+    static void report() {
+        LogCallSiteReference.expunge(SITES);
+        StringBuilder line = new StringBuilder();
+        for (LogCallSiteReference reference : SITES) {
+            LogCallSite site = reference.get();
+            if (site == null) {
+                continue;
+            }
+            try {
+                LogCallOverhead overhead = site.getOverhead();
+                long calls = overhead.getInvocations();
+                if (calls == overhead.reportedInvocations) {
+                    continue;
+                }
+                overhead.reportedInvocations = calls;
+                line.setLength(0);
+                overhead.appendTo(line.append("Overhead '").append(site.getMethodName()).append("'"));
+                LogCallAdvice.log(LogManager.getLogger(LogCallOverhead.class), LogLevel.INFO, line.toString());
+            } catch (RuntimeException e) {
+                LOGGER.error("LogCall: could not report the overhead of {}", site.getMethodName(), e);
+            }
+        }
+    }
+
+    void appendTo(StringBuilder line) {
+        line.append(" | Invocations: ").append(getInvocations())
+                .append(" | Emitted: ").append(getEmitted())
+                .append(" | Suppressed: ").append(getSuppressed());
+        LogCallAdvice.appendDuration(line.append(" | Advice: "), getAdviceNanos());
+        LogCallAdvice.appendDuration(line.append(" | Per Event: "), getAdviceNanosPerEvent());
+    }
+
+    // --- JMX attributes ---
+
+    @Override
+    public long getInvocations() {
+        return invocations.sum();
+    }
+
+    @Override
+    public long getEmitted() {
+        return emitted.sum();
+    }
+
+    @Override
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    @Override
+    public long getAdviceNanos() {
+        return adviceNanos.sum();
+    }
+
+    @Override
+    public long getAdviceNanosPerEvent() {
+        long events = getEmitted();
+        return events == 0 ? 0 : getAdviceNanos() / events;
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+/**
+ * JMX view of a {@link LogCallOverhead}. The counts and times are totals since the method was loaded.
+ */
+public interface LogCallOverheadMBean {
+
+    long getInvocations();
+
+    long getEmitted();
+
+    long getSuppressed();
+
+    long getAdviceNanos();
+
+    long getAdviceNanosPerEvent();
+}
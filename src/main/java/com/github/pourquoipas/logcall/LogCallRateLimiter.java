@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free limiter allowing at most a fixed number of calls per second, used for {@link LogCall#maxPerSecond()}.
+ * <p>
+ * The current second and the number of calls accepted in it are packed in a single {@link AtomicLong}.
+ * Once the budget of the second is spent, callers only read the shared value and never write it,
+ * so contention is bounded by the budget itself, however many threads call the method.
+ */
+final class LogCallRateLimiter {
+
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
+
+    private final int maxPerSecond;
+
+    /**
+     * The current second in the high 32 bits, the calls accepted in that second in the low 32 bits.
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    LogCallRateLimiter(int maxPerSecond) {
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    /**
+     * @return true if the call is within the budget of the current second.
+     */
+    boolean tryAcquire() {
+        return tryAcquire(System.currentTimeMillis() / 1000);
+    }
+
+    boolean tryAcquire(long second) {
+        while (true) {
+            long current = state.get();
+            if (current >>> 32 == (second & COUNT_MASK)) {
+                if ((current & COUNT_MASK) >= maxPerSecond) {
+                    return false;
+                }
+                if (state.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            } else if (state.compareAndSet(current, (second << 32) | 1)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+/**
+ * Renders the arguments and return values of logged calls of some types.
+ * <p>
+ * Custom renderers are registered as services: list the implementation classes in
+ * {@code META-INF/services/com.github.pourquoipas.logcall.LogCallRenderer}. They are consulted before the built-in
+ * renderers, in the order in which they are found; the renderer chosen for a class is cached, so
+ * {@link #supports(Class)} is only called once per class.
+ * <p>
+ * Renderers are shared by all threads and must be thread-safe.
+ */
+public interface LogCallRenderer {
+
+    /**
+     * @param type The runtime class of a value.
+     * @return true if this renderer handles the values of the given class.
+     */
+    boolean supports(Class<?> type);
+
+    /**
+     * Writes a value. Nested values, e.g. the fields of an entity, should be written with
+     * {@link LogCallOutput#render(Object)} so that they are rendered by their own renderer and count against
+     * the same budget; once {@link LogCallOutput#isFull()} returns true, nothing more is written.
+     *
+     * @param value  The value, never null.
+     * @param output The message being written.
+     */
+    void render(Object value, LogCallOutput output);
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free, multi-producer ring buffer that moves logged calls off the calling threads.
+ * <p>
+ * When the asynchronous mode is enabled, the advice only copies the call data into a preallocated slot;
+ * a single background thread renders the messages and calls Log4j, in batches. Primitive arguments and results
+ * are copied into the slot; objects are passed by reference, so objects mutated right after the call may be logged
+ * with their new state.
+ * <p>
+ * The mode is configured with system properties:
+ * <ul>
+ *     <li>{@code logcall.async}: enables the asynchronous mode (default false).</li>
+ *     <li>{@code logcall.async.bufferSize}: number of slots, rounded up to a power of two (default 8192).</li>
+ *     <li>{@code logcall.async.overflow}: {@link OverflowPolicy} applied when the buffer is full (default DROP).</li>
+ *     <li>{@code logcall.async.sampleRate}: with SAMPLE, one event in this many is kept once the buffer is half full (default 10).</li>
+ *     <li>{@code logcall.async.wait}: {@link WaitPolicy} of the consumer and of blocked producers (default PARK).</li>
+ * </ul>
+ */
+public final class LogCallRingBuffer {
+
+    /**
+     * What a producer does when there is no free slot.
+     */
+    public enum OverflowPolicy {
+        /** Drop the event and count it. */
+        DROP,
+        /** Wait for the consumer to free a slot. */
+        BLOCK,
+        /** Keep one event in {@code sampleRate} once the buffer is half full, drop the event when it is full. */
+        SAMPLE
+    }
+
+    /**
+     * How the consumer waits for events, and blocked producers for free slots.
+     */
+    public enum WaitPolicy {
+        /** Park for a short time: low CPU usage, slightly higher latency. */
+        PARK,
+        /** Yield the processor: lowest latency, keeps a core busy. */
+        YIELD
+    }
+
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
+    private static final int BATCH_SIZE = 256;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /**
+     * The shared instance used by the advice, or null when the asynchronous mode is disabled.
+     */
+    static final LogCallRingBuffer INSTANCE = Boolean.getBoolean("logcall.async") ? startShared() : null;
+
+    private static final class Slot {
+        /** The sequence published in this slot; a slot is readable when it equals the sequence being consumed. */
+        volatile long sequence = -1;
+
+        LogCallSite site;
+        /** The values of the call, copied into arrays that the slot reuses. */
+        final LogCallValues values = new LogCallValues();
+        boolean captured;
+        final LogCallSpan span = new LogCallSpan();
+        boolean hasSpan;
+        Throwable exception;
+        StackTraceElement[] callStack;
+        Thread thread;
+        long startTime;
+        long endTime;
+
+        void clear() {
+            site = null;
+            values.release();
+            exception = null;
+            callStack = null;
+            thread = null;
+        }
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final OverflowPolicy overflowPolicy;
+    private final int sampleRate;
+    private final WaitPolicy waitPolicy;
+
+    /** The next sequence to claim. */
+    private final AtomicLong cursor = new AtomicLong();
+    /** The next sequence to consume; every sequence below it has been processed and its slot is free. */
+    private volatile long consumed;
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+
+    private final Thread consumer;
+    private volatile boolean running;
+
+    LogCallRingBuffer(int bufferSize, OverflowPolicy overflowPolicy, int sampleRate, WaitPolicy waitPolicy) {
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize) - 1) << 1;
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = capacity - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.waitPolicy = waitPolicy;
+        this.consumer = new Thread(this::consume, "LogCall-RingBuffer");
+        this.consumer.setDaemon(true);
+    }
+
+    private static LogCallRingBuffer startShared() {
+        LogCallRingBuffer ringBuffer = new LogCallRingBuffer(
+                Integer.getInteger("logcall.async.bufferSize", 8192),
+                OverflowPolicy.valueOf(System.getProperty("logcall.async.overflow", OverflowPolicy.DROP.name())),
+                Integer.getInteger("logcall.async.sampleRate", 10),
+                WaitPolicy.valueOf(System.getProperty("logcall.async.wait", WaitPolicy.PARK.name())));
+        ringBuffer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> ringBuffer.stop(1, TimeUnit.SECONDS), "LogCall-RingBuffer-Shutdown"));
+        return ringBuffer;
+    }
+
+    /**
+     * @return The shared instance used by the advice, or null when the asynchronous mode is disabled.
+     */
+    public static LogCallRingBuffer getInstance() {
+        return INSTANCE;
+    }
+
+    void start() {
+        running = true;
+        consumer.start();
+    }
+
+    /**
+     * Stops the consumer after the events already published have been logged.
+     *
+     * @param timeout The maximum time to wait for the consumer.
+     * @param unit    The unit of the timeout.
+     */
+    public void stop(long timeout, TimeUnit unit) {
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(unit.toMillis(timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until every event published so far has been logged.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit    The unit of the timeout.
+     * @return true if the buffer was drained in time.
+     */
+    public boolean flush(long timeout, TimeUnit unit) {
+        long target = cursor.get();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (consumed < target) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            idle();
+        }
+        return true;
+    }
+
+    /**
+     * Publishes a call. Never blocks unless the overflow policy is {@link OverflowPolicy#BLOCK}.
+     *
+     * @return false if the event was dropped or sampled out.
+     */
+    boolean publish(LogCallSite site, long startTime, long endTime, LogCallValues values, Throwable exception, StackTraceElement[] callStack,
+                    LogCallSpan span) {
+        long sequence;
+        while (true) {
+            sequence = cursor.get();
+            long used = sequence - consumed;
+            if (used >= slots.length) {
+                if (overflowPolicy == OverflowPolicy.BLOCK && running) {
+                    idle();
+                    continue;
+                }
+                dropped.increment();
+                return false;
+            }
+            if (overflowPolicy == OverflowPolicy.SAMPLE && used >= slots.length / 2
+                    && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+                sampledOut.increment();
+                return false;
+            }
+            if (cursor.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+
+        Slot slot = slots[(int) (sequence & mask)];
+        slot.site = site;
+        slot.captured = values != null;
+        if (values != null) {
+            slot.values.copyFrom(values);
+        }
+        slot.exception = exception;
+        slot.hasSpan = span != null;
+        if (span != null) {
+            slot.span.copyFrom(span);
+        }
+        slot.callStack = callStack;
+        slot.thread = Thread.currentThread();
+        slot.startTime = startTime;
+        slot.endTime = endTime;
+        // The volatile write publishes the fields above to the consumer.
+        slot.sequence = sequence;
+        return true;
+    }
+
+    private void consume() {
+        long next = consumed;
+        while (running || next < cursor.get()) {
+            int batch = 0;
+            Slot slot;
+            while (batch < BATCH_SIZE && (slot = slots[(int) (next & mask)]).sequence == next) {
+                try {
+                    LogCallAdvice.logCall(slot.site, slot.endTime - slot.startTime, slot.captured ? slot.values : null,
+                            slot.exception, slot.callStack, slot.thread, slot.hasSpan ? slot.span : null);
+                } catch (Throwable t) {
+                    LOGGER.error("LogCall: could not log a call of {}", slot.site.getMethodName(), t);
+                }
+                slot.clear();
+                next++;
+                batch++;
+            }
+            if (batch > 0) {
+                consumed = next;
+            } else {
+                idle();
+            }
+        }
+    }
+
+    private void idle() {
+        if (waitPolicy == WaitPolicy.YIELD) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    /**
+     * @return The number of slots.
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return The number of events dropped because the buffer was full.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return The number of events discarded by the {@link OverflowPolicy#SAMPLE} policy.
+     */
+    public long getSampledOutCount() {
+        return sampledOut.sum();
+    }
+}
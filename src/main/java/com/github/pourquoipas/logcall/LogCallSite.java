@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.spi.LoggerContext;
+import org.apache.logging.log4j.spi.LoggerContextShutdownEnabled;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The static metadata of a single method annotated with {@link LogCall}.
+ * <p>
+ * The weaver adds one static field per annotated method to the woven class, initialized once in the type
+ * initializer, so the advice never has to look up the method, its annotation or its logger on a call.
+ */
+public final class LogCallSite {
+
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    private static final LogLevel[] LEVELS = LogLevel.values();
+
+    private final int id = IDS.incrementAndGet();
+    private final Class<?> declaringClass;
+    private final String className;
+    private final String methodName;
+    private final String descriptor;
+    private final String[] parameterNames;
+    private final String[] parameterKeys;
+    private final boolean hasReturnValue;
+    private final boolean returnsCompletionStage;
+
+    private final LogLevel level;
+    private final boolean logParameters;
+    private final boolean logReturn;
+    private final boolean logStackTrace;
+    private final boolean logException;
+    private final String customLog;
+    private final LogCallTemplate template;
+    private final double sampleRate;
+    private final LogCallRateLimiter rateLimiter;
+    private final long slowerThanNanos;
+    private final LogCallHistogram histogram;
+    private final LogCallOverhead overhead;
+
+    /**
+     * The overrides set through {@link LogCallControl}, packed as described there; 0 when there are none.
+     */
+    private volatile int overrides;
+
+    /**
+     * Resolved on first use and cleared when its logger context shuts down, so a new context is picked up.
+     */
+    private volatile Logger logger;
+
+    private LogCallSite(Class<?> declaringClass, Method method, String descriptor, LogCall logCall, LogCallTemplate template) {
+        this.declaringClass = declaringClass;
+        this.className = declaringClass.getSimpleName();
+        this.methodName = method.getName();
+        this.descriptor = descriptor;
+        Parameter[] parameters = method.getParameters();
+        this.parameterNames = new String[parameters.length];
+        this.parameterKeys = new String[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            this.parameterNames[i] = parameters[i].getName();
+            this.parameterKeys[i] = "param." + parameters[i].getName();
+        }
+        this.hasReturnValue = method.getReturnType() != void.class;
+        this.returnsCompletionStage = CompletionStage.class.isAssignableFrom(method.getReturnType());
+        this.slowerThanNanos = logCall.slowerThan() > 0 ? logCall.slowerThanUnit().toNanos(logCall.slowerThan()) : -1;
+        // Only slow calls are logged when there is a threshold, so they are checked and logged at the escalated level.
+        this.level = slowerThanNanos >= 0 && logCall.slowLevel().compareTo(logCall.level()) > 0 ? logCall.slowLevel() : logCall.level();
+        this.logParameters = logCall.logParameters();
+        this.logReturn = logCall.logReturn();
+        this.logStackTrace = logCall.logStackTrace();
+        this.logException = logCall.logException();
+        this.customLog = logCall.customLog();
+        this.template = template;
+        this.sampleRate = logCall.sampleRate();
+        this.rateLimiter = logCall.maxPerSecond() > 0 ? new LogCallRateLimiter(logCall.maxPerSecond()) : null;
+        this.histogram = logCall.aggregate() ? new LogCallHistogram() : null;
+        this.overhead = LogCallOverhead.ENABLED ? new LogCallOverhead() : null;
+    }
+
+    /**
+     * Creates the metadata of a woven method. Called from the static initializer of woven classes.
+     *
+     * @param declaringClass The woven class.
+     * @param methodName     The name of the annotated method.
+     * @param descriptor     The JVM descriptor of the annotated method.
+     * @param template       The compiled custom log pattern, or null if the method has none.
+     * @return The call site; the existing one if the method already has a site.
+     */
+    public static LogCallSite of(Class<?> declaringClass, String methodName, String descriptor, LogCallTemplate template) {
+        LogCallSite existing = LogCallControl.find(declaringClass, methodName, descriptor);
+        if (existing != null) {
+            return existing;
+        }
+        for (Method method : declaringClass.getDeclaredMethods()) {
+            if (method.getName().equals(methodName) && descriptorOf(method).equals(descriptor)) {
+                LogCall logCall = method.getAnnotation(LogCall.class);
+                if (logCall == null) {
+                    break;
+                }
+                LogCallSite site = new LogCallSite(declaringClass, method, descriptor, logCall, template);
+                LogCallControl.register(site);
+                if (site.histogram != null) {
+                    LogCallAggregator.register(site);
+                }
+                if (site.overhead != null) {
+                    LogCallOverhead.register(site);
+                }
+                return site;
+            }
+        }
+        throw new IllegalStateException("No @LogCall method " + methodName + descriptor + " in " + declaringClass.getName());
+    }
+
+    private static String descriptorOf(Method method) {
+        StringBuilder descriptor = new StringBuilder().append('(');
+        for (Class<?> type : method.getParameterTypes()) {
+            appendDescriptor(descriptor, type);
+        }
+        appendDescriptor(descriptor.append(')'), method.getReturnType());
+        return descriptor.toString();
+    }
+
+    private static void appendDescriptor(StringBuilder descriptor, Class<?> type) {
+        while (type.isArray()) {
+            descriptor.append('[');
+            type = type.getComponentType();
+        }
+        if (!type.isPrimitive()) {
+            descriptor.append('L').append(type.getName().replace('.', '/')).append(';');
+            return;
+        }
+        switch (type.getName()) {
+            case "boolean": descriptor.append('Z'); break;
+            case "byte":    descriptor.append('B'); break;
+            case "char":    descriptor.append('C'); break;
+            case "short":   descriptor.append('S'); break;
+            case "int":     descriptor.append('I'); break;
+            case "long":    descriptor.append('J'); break;
+            case "float":   descriptor.append('F'); break;
+            case "double":  descriptor.append('D'); break;
+            default:        descriptor.append('V'); break;
+        }
+    }
+
+    /**
+     * @return The logger of the declaring class.
+     */
+    public Logger getLogger() {
+        Logger current = logger;
+        return current != null ? current : resolveLogger();
+    }
+
+    private synchronized Logger resolveLogger() {
+        if (logger == null) {
+            LoggerContext context = LogManager.getContext(declaringClass.getClassLoader(), false);
+            if (context instanceof LoggerContextShutdownEnabled) {
+                ((LoggerContextShutdownEnabled) context).addShutdownListener(stopped -> logger = null);
+            }
+            logger = context.getLogger(declaringClass);
+        }
+        return logger;
+    }
+
+    /**
+     * Checks that the method is not disabled through {@link LogCallControl} and that its level is enabled.
+     * Called on method entry.
+     *
+     * @return true if the calls of the method are logged, subject to sampling.
+     */
+    public boolean isEnabled() {
+        int current = overrides;
+        return (current & LogCallControl.DISABLED) == 0 && LogCallAdvice.isLoggerEnabled(getLogger(), level(current));
+    }
+
+    int getOverrides() {
+        return overrides;
+    }
+
+    /**
+     * Replaces the bits of the overrides selected by the mask.
+     */
+    synchronized void updateOverrides(int mask, int value) {
+        overrides = overrides & ~mask | value;
+    }
+
+    private LogLevel level(int current) {
+        int override = (current >>> LogCallControl.LEVEL_SHIFT) & LogCallControl.LEVEL_MASK;
+        return override == 0 ? level : LEVELS[override - 1];
+    }
+
+    private boolean option(int shift, boolean annotated) {
+        int override = (overrides >>> shift) & LogCallControl.OPTION_MASK;
+        return override == 0 ? annotated : override == LogCallControl.OPTION_ON;
+    }
+
+    /**
+     * Applies {@link LogCall#sampleRate()} and {@link LogCall#maxPerSecond()}. Called on method entry,
+     * only when the level is enabled, so that suppressed calls pay neither timing nor capture.
+     *
+     * @return true if this call must be logged.
+     */
+    public boolean sample() {
+        if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return false;
+        }
+        return rateLimiter == null || rateLimiter.tryAcquire();
+    }
+
+    /**
+     * @return A number identifying the method in this JVM, assigned when its class is initialized.
+     */
+    public int getId() {
+        return id;
+    }
+
+    public Class<?> getDeclaringClass() {
+        return declaringClass;
+    }
+
+    /**
+     * @return The simple name of the declaring class.
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    /**
+     * @return The JVM descriptor of the method.
+     */
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    public String[] getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * @return The keys of the parameters in structured messages, see {@link LogCallMapMessage}.
+     */
+    public String[] getParameterKeys() {
+        return parameterKeys;
+    }
+
+    public int getParameterCount() {
+        return parameterNames.length;
+    }
+
+    /**
+     * @return true if the method does not return void.
+     */
+    public boolean hasReturnValue() {
+        return hasReturnValue;
+    }
+
+    /**
+     * @return true if the method returns a {@link CompletionStage}, such as a CompletableFuture: its calls are
+     * logged when the stage completes.
+     */
+    public boolean returnsCompletionStage() {
+        return returnsCompletionStage;
+    }
+
+    /**
+     * @return The level the calls are logged at: the override if any, otherwise the level of the annotation,
+     * already escalated to {@link LogCall#slowLevel()} when it applies.
+     */
+    public LogLevel getLevel() {
+        return level(overrides);
+    }
+
+    /**
+     * @return The {@link LogCall#slowerThan()} threshold in nanoseconds, or -1 when every call is logged.
+     */
+    public long getSlowerThanNanos() {
+        return slowerThanNanos;
+    }
+
+    public boolean isLogParameters() {
+        return option(LogCallControl.PARAMETERS_SHIFT, logParameters);
+    }
+
+    public boolean isLogReturn() {
+        return option(LogCallControl.RETURN_SHIFT, logReturn);
+    }
+
+    public boolean isLogStackTrace() {
+        return option(LogCallControl.STACK_TRACE_SHIFT, logStackTrace);
+    }
+
+    public boolean isLogException() {
+        return option(LogCallControl.EXCEPTION_SHIFT, logException);
+    }
+
+    /**
+     * @return The histogram of the method when it uses {@link LogCall#aggregate()}, otherwise null.
+     */
+    public LogCallHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * @return The overhead counters of the method when {@link LogCallOverhead#ENABLED}, otherwise null.
+     */
+    public LogCallOverhead getOverhead() {
+        return overhead;
+    }
+
+    /**
+     * @return The custom log pattern as declared, empty if the method has none.
+     */
+    public String getCustomLog() {
+        return customLog;
+    }
+
+    /**
+     * @return The compiled custom log pattern, or null if the method has none.
+     */
+    public LogCallTemplate getTemplate() {
+        return template;
+    }
+}
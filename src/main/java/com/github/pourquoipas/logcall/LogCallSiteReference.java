@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import org.apache.logging.log4j.status.StatusLogger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.List;
+
+/**
+ * A weak reference to a {@link LogCallSite}, held by the registries of the library.
+ * <p>
+ * A site references its woven class, and so its class loader: registries that held sites strongly would keep the
+ * classes of a redeployed web application or plugin loaded forever. Once the site is collected, the registry drops
+ * the reference and calls {@link #release()}, which unregisters the MBean registered for the site, if any, so that
+ * the next deployment can register its own under the same name.
+ */
+final class LogCallSiteReference extends WeakReference<LogCallSite> {
+
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
+    private final ObjectName mbeanName;
+
+    /**
+     * @param mbeanName The name of the MBean registered for the site, or null if there is none.
+     */
+    LogCallSiteReference(LogCallSite site, ObjectName mbeanName) {
+        super(site);
+        this.mbeanName = mbeanName;
+    }
+
+    /**
+     * Registers an MBean for a site.
+     *
+     * @param type The {@code type} key of the name, e.g. {@code Histogram}.
+     * @return The reference to the site, which unregisters the MBean once released.
+     */
+    static LogCallSiteReference registerMBean(LogCallSite site, String type, Object mbean) {
+        try {
+            ObjectName name = new ObjectName("com.github.pourquoipas.logcall:type=" + type
+                    + ",class=" + site.getDeclaringClass().getName()
+                    + ",method=" + ObjectName.quote(site.getMethodName() + site.getDescriptor()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+            return new LogCallSiteReference(site, name);
+        } catch (JMException e) {
+            // Typically the same class loaded by another class loader that is still alive.
+            LOGGER.warn("LogCall: could not register the {} MBean of {}: {}", type, site.getMethodName(), e.toString());
+            return new LogCallSiteReference(site, null);
+        }
+    }
+
+    /**
+     * Removes the references to the sites that were collected from a registry, and unregisters their MBeans.
+     */
+    static void expunge(List<LogCallSiteReference> references) {
+        for (LogCallSiteReference reference : references) {
+            if (reference.get() == null && references.remove(reference)) {
+                reference.release();
+            }
+        }
+    }
+
+    /**
+     * Unregisters the MBean of a site that was collected.
+     */
+    void release() {
+        if (mbeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (JMException e) {
+            LOGGER.warn("LogCall: could not unregister the MBean {}", mbeanName, e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+/**
+ * The position of a logged call in the tree of the nested logged calls of its thread, see {@link LogCallSpans}.
+ * <p>
+ * Instances are preallocated and reused: the span of a call is only valid until the next call of the same thread,
+ * and is copied by the messages and the ring buffer that keep it longer.
+ */
+public final class LogCallSpan {
+
+    private long spanId;
+    private long parentId;
+    private int depth;
+    private long selfNanos;
+
+    LogCallSpan() {
+    }
+
+    void set(long spanId, long parentId, int depth, long selfNanos) {
+        this.spanId = spanId;
+        this.parentId = parentId;
+        this.depth = depth;
+        this.selfNanos = selfNanos;
+    }
+
+    LogCallSpan copyFrom(LogCallSpan other) {
+        set(other.spanId, other.parentId, other.depth, other.selfNanos);
+        return this;
+    }
+
+    /**
+     * @return The id of the call, unique in the JVM.
+     */
+    public long getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * @return The id of the logged call this call is nested in, or 0 for an outermost call.
+     */
+    public long getParentId() {
+        return parentId;
+    }
+
+    /**
+     * @return The number of logged calls this call is nested in.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return The duration of the call minus the duration of the logged calls nested in it, in nanoseconds.
+     */
+    public long getSelfNanos() {
+        return selfNanos;
+    }
+
+    /**
+     * Appends an id as 16 hexadecimal digits, without allocating.
+     */
+    public static StringBuilder appendId(StringBuilder sb, long id) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            sb.append(Character.forDigit((int) (id >>> shift) & 0xF, 16));
+        }
+        return sb;
+    }
+}
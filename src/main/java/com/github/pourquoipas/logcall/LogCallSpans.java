@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+/**
+ * Correlates nested logged calls, when enabled with the {@code logcall.callTree} system property.
+ * <ul>
+ *     <li>{@code spans}: every logged call carries a {@link LogCallSpan}: its id, the id of the logged call it is
+ *     nested in, its depth and its self time, i.e. its duration minus the duration of the logged calls nested in it.</li>
+ *     <li>{@code tree}: in addition, the outermost call logs the tree of the calls nested in it, with the calls of the
+ *     same method under the same parent merged into one node with their count, total time and self time.</li>
+ * </ul>
+ * Each thread keeps a preallocated stack of the calls in progress, so tracking a call does not allocate. Calls nested
+ * deeper than {@code logcall.callTree.maxDepth} (default 64) are not tracked; a tree keeps at most
+ * {@code logcall.callTree.maxNodes} (default 256) nodes and reports the calls it could not place.
+ */
+public final class LogCallSpans {
+
+    private static final String MODE = System.getProperty("logcall.callTree", "");
+
+    /**
+     * true if the calls are tracked. Read by the woven code, where the JIT folds it.
+     */
+    public static final boolean ENABLED = MODE.equals("spans") || MODE.equals("tree");
+
+    /**
+     * true if the outermost calls log their call tree.
+     */
+    static final boolean TREE = MODE.equals("tree");
+
+    static final int MAX_DEPTH = Math.max(1, Integer.getInteger("logcall.callTree.maxDepth", 64));
+    static final int MAX_NODES = Math.max(1, Integer.getInteger("logcall.callTree.maxNodes", 256));
+
+    /** The node of a call that did not fit in the tree. */
+    private static final int NO_NODE = -1;
+
+    private static final ThreadLocal<Stack> STACKS = ThreadLocal.withInitial(() -> new Stack(TREE));
+
+    private LogCallSpans() {
+    }
+
+    /**
+     * Pushes a logged call. Called on method entry, only for the calls that are logged.
+     */
+    public static void enter(LogCallSite site) {
+        STACKS.get().push(site);
+    }
+
+    /**
+     * Pops the current call.
+     *
+     * @param duration The duration of the call in nanoseconds.
+     * @return The span of the call, valid until the next call of this thread, or null if it was not tracked.
+     */
+    static LogCallSpan exit(long duration) {
+        return STACKS.get().pop(duration);
+    }
+
+    /**
+     * Logs the call tree of the outermost call that just exited, with the logger and level of its method.
+     */
+    static void logTree(LogCallSite site, long duration) {
+        StringBuilder text = new StringBuilder();
+        STACKS.get().appendTree(text.append("Call Tree '").append(site.getMethodName()).append("'"), duration);
+        LogCallAdvice.log(site.getLogger(), site.getLevel(), text.toString());
+    }
+
+    /**
+     * The calls in progress on one thread, and the tree of its current outermost call.
+     */
+    static final class Stack {
+
+        private final long threadBits = Thread.currentThread().getId() << 32;
+        private int sequence;
+
+        private final long[] spanIds = new long[MAX_DEPTH];
+        private final long[] childNanos = new long[MAX_DEPTH];
+        private final int[] nodes = new int[MAX_DEPTH];
+        private final LogCallSpan[] spans = new LogCallSpan[MAX_DEPTH];
+        private int depth;
+        /** The calls nested deeper than MAX_DEPTH, not tracked. */
+        private int overflow;
+
+        // The tree, one node per method and parent node; a node follows its parent in the arrays.
+        private final boolean tree;
+        private final LogCallSite[] nodeSites;
+        private final int[] nodeParents;
+        private final long[] nodeCounts;
+        private final long[] nodeTotals;
+        private final long[] nodeSelfs;
+        private int nodeCount;
+        private long missingCalls;
+
+        Stack(boolean tree) {
+            for (int i = 0; i < MAX_DEPTH; i++) {
+                spans[i] = new LogCallSpan();
+            }
+            this.tree = tree;
+            int nodeCapacity = tree ? MAX_NODES : 0;
+            nodeSites = new LogCallSite[nodeCapacity];
+            nodeParents = new int[nodeCapacity];
+            nodeCounts = new long[nodeCapacity];
+            nodeTotals = new long[nodeCapacity];
+            nodeSelfs = new long[nodeCapacity];
+        }
+
+        void push(LogCallSite site) {
+            if (depth == MAX_DEPTH) {
+                overflow++;
+                return;
+            }
+            int d = depth++;
+            spanIds[d] = threadBits | (++sequence & 0xFFFFFFFFL);
+            childNanos[d] = 0;
+            if (tree) {
+                nodes[d] = node(site, d == 0 ? NO_NODE : nodes[d - 1], d == 0);
+            }
+        }
+
+        LogCallSpan pop(long duration) {
+            if (overflow > 0) {
+                overflow--;
+                return null;
+            }
+            if (depth == 0) {
+                return null;
+            }
+            int d = --depth;
+            long self = duration - childNanos[d];
+            if (d > 0) {
+                childNanos[d - 1] += duration;
+            }
+            if (tree) {
+                int node = nodes[d];
+                if (node == NO_NODE) {
+                    missingCalls++;
+                } else {
+                    nodeCounts[node]++;
+                    nodeTotals[node] += duration;
+                    nodeSelfs[node] += self;
+                }
+            }
+            LogCallSpan span = spans[d];
+            span.set(spanIds[d], d > 0 ? spanIds[d - 1] : 0, d, self);
+            return span;
+        }
+
+        private int node(LogCallSite site, int parent, boolean root) {
+            if (root) {
+                for (int i = 0; i < nodeCount; i++) {
+                    nodeSites[i] = null;
+                }
+                nodeCount = 0;
+                missingCalls = 0;
+            } else if (parent == NO_NODE) {
+                return NO_NODE;
+            }
+            for (int i = parent + 1; i < nodeCount; i++) {
+                if (nodeParents[i] == parent && nodeSites[i] == site) {
+                    return i;
+                }
+            }
+            if (nodeCount == nodeSites.length) {
+                return NO_NODE;
+            }
+            int node = nodeCount++;
+            nodeSites[node] = site;
+            nodeParents[node] = parent;
+            nodeCounts[node] = 0;
+            nodeTotals[node] = 0;
+            nodeSelfs[node] = 0;
+            return node;
+        }
+
+        void appendTree(StringBuilder sb, long duration) {
+            LogCallAdvice.appendDuration(sb.append(" | Duration: "), duration);
+            if (nodeCount > 0) {
+                appendNode(sb, 0, 0);
+            }
+            if (missingCalls > 0) {
+                sb.append("\n\t(").append(missingCalls).append(" calls not shown)");
+            }
+        }
+
+        private void appendNode(StringBuilder sb, int node, int level) {
+            sb.append('\n');
+            for (int i = 0; i <= level; i++) {
+                sb.append('\t');
+            }
+            sb.append(nodeSites[node].getClassName()).append('.').append(nodeSites[node].getMethodName())
+                    .append(" x").append(nodeCounts[node]);
+            LogCallAdvice.appendDuration(sb.append(" | Total: "), nodeTotals[node]);
+            LogCallAdvice.appendDuration(sb.append(" | Self: "), nodeSelfs[node]);
+            for (int child = node + 1; child < nodeCount; child++) {
+                if (nodeParents[child] == node) {
+                    appendNode(sb, child, level + 1);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import java.util.Arrays;
+
+/**
+ * Captures the call stack of a method logged with {@link LogCall#logStackTrace()}, without the frames of LogCall
+ * and bounded to {@code logcall.stackTrace.maxDepth} frames (default 64).
+ * <p>
+ * This is the Java 8 version, which has to fill in the whole stack of a {@link Throwable}. On Java 9 and later the
+ * multi-release jar provides a version built on {@code StackWalker}, which only walks the frames it keeps.
+ * The frames are formatted only when the message is rendered.
+ */
+final class LogCallStackCapture {
+
+    static final int MAX_DEPTH = Math.max(1, Integer.getInteger("logcall.stackTrace.maxDepth", 64));
+
+    private LogCallStackCapture() {
+    }
+
+    static StackTraceElement[] capture() {
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        int start = 0;
+        while (start < stack.length && LogCallAdvice.isLogCallFrame(stack[start].getClassName())) {
+            start++;
+        }
+        return Arrays.copyOfRange(stack, start, Math.min(stack.length, start + MAX_DEPTH));
+    }
+}
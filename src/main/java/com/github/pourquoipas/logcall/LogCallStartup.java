@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Times the constructors and type initializers of the classes selected for startup profiling, until the application
+ * signals that it is ready by calling {@link #ready()}.
+ * <p>
+ * The classes are selected at weave time with the {@code logcall.startup.packages} system property, see
+ * {@link LogCallClassWeaver}. Each thread keeps a preallocated stack of the calls in progress, so that the self time
+ * of a call excludes the timed calls nested in it, e.g. the initializer of another class triggered by a constructor.
+ * {@link #ready()} logs a ranked report at INFO level, with the logger of this class:
+ * the slowest type initializers, the slowest constructors and the cumulative self time per package.
+ * The number of classes listed in each ranking is set with the {@code logcall.startup.top} system property
+ * (default 20). After the report the woven code only reads a flag.
+ */
+public final class LogCallStartup {
+
+    private static final StatusLogger LOGGER = StatusLogger.getLogger();
+
+    private static final int TOP = Math.max(1, Integer.getInteger("logcall.startup.top", 20));
+
+    static final int MAX_DEPTH = 128;
+
+    private static volatile boolean active = true;
+
+    private static final Map<Class<?>, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<Stack> STACKS = ThreadLocal.withInitial(Stack::new);
+
+    private LogCallStartup() {
+    }
+
+    /**
+     * Starts timing a constructor or type initializer.
+     *
+     * @return The depth of the call, to hand over to {@link #exit(Class, String, int)}, or 0 if it is not timed.
+     */
+    public static int enter() {
+        if (!active) {
+            return 0;
+        }
+        Stack stack = STACKS.get();
+        if (stack.depth == MAX_DEPTH) {
+            return 0;
+        }
+        stack.startTimes[stack.depth] = System.nanoTime();
+        stack.nestedTimes[stack.depth] = 0;
+        return ++stack.depth;
+    }
+
+    /**
+     * Stops timing a constructor or type initializer.
+     *
+     * @param type   The class declaring the method.
+     * @param method {@code <init>} or {@code <clinit>}.
+     * @param depth  The value returned by {@link #enter()}.
+     */
+    public static void exit(Class<?> type, String method, int depth) {
+        if (depth == 0) {
+            return;
+        }
+        long endTime = System.nanoTime();
+        Stack stack = STACKS.get();
+        if (depth > stack.depth) {
+            return;
+        }
+        int index = depth - 1;
+        long total = endTime - stack.startTimes[index];
+        // Also drops the nested calls that threw, whose exit advice never ran.
+        stack.depth = index;
+        if (index > 0) {
+            stack.nestedTimes[index - 1] += total;
+        }
+        try {
+            ENTRIES.computeIfAbsent(type, Entry::new).record(method.equals("<clinit>"), total, total - stack.nestedTimes[index]);
+        } catch (RuntimeException e) {
+            LOGGER.error("LogCall: could not record the startup time of {}", type, e);
+        }
+    }
+
+    /**
+     * Signals that the application is ready: logs the startup report and stops timing.
+     * Only the first call has an effect.
+     */
+    public static void ready() {
+        synchronized (LogCallStartup.class) {
+            if (!active) {
+                return;
+            }
+            active = false;
+        }
+        try {
+            StringBuilder report = new StringBuilder("Startup Report | Uptime: ")
+                    .append(ManagementFactory.getRuntimeMXBean().getUptime()).append("ms");
+            appendReport(report);
+            LogCallAdvice.log(LogManager.getLogger(LogCallStartup.class), LogLevel.INFO, report.toString());
+        } catch (RuntimeException e) {
+            LOGGER.error("LogCall: could not log the startup report", e);
+        }
+        // Lets the profiled classes be unloaded.
+        ENTRIES.clear();
+    }
+
+    /**
+     * Appends the rankings of the calls timed so far.
+     */
+    static void appendReport(StringBuilder report) {
+        List<Entry> entries = new ArrayList<>(ENTRIES.values());
+        report.append(" | Classes: ").append(entries.size());
+
+        entries.sort(Comparator.comparingLong((Entry entry) -> entry.initializerSelf.sum()).reversed());
+        report.append("\nSlowest type initializers:");
+        appendRanking(report, entries, true);
+
+        entries.sort(Comparator.comparingLong((Entry entry) -> entry.constructorSelf.sum()).reversed());
+        report.append("\nSlowest constructors:");
+        appendRanking(report, entries, false);
+
+        Map<String, Long> packages = new TreeMap<>();
+        for (Entry entry : entries) {
+            packages.merge(packageOf(entry.type), entry.initializerSelf.sum() + entry.constructorSelf.sum(), Long::sum);
+        }
+        List<Map.Entry<String, Long>> ranking = new ArrayList<>(packages.entrySet());
+        ranking.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        report.append("\nSelf time per package:");
+        for (Map.Entry<String, Long> entry : ranking) {
+            LogCallAdvice.appendDuration(report.append("\n\t").append(entry.getKey()).append(" | "), entry.getValue());
+        }
+    }
+
+    private static void appendRanking(StringBuilder report, List<Entry> entries, boolean initializers) {
+        int listed = 0;
+        for (Entry entry : entries) {
+            long count = initializers ? entry.initializerCount.sum() : entry.constructorCount.sum();
+            if (count == 0) {
+                continue;
+            }
+            if (listed++ == TOP) {
+                break;
+            }
+            report.append("\n\t").append(entry.type.getName());
+            if (!initializers) {
+                report.append(" x").append(count);
+            }
+            LogCallAdvice.appendDuration(report.append(" | Self: "),
+                    initializers ? entry.initializerSelf.sum() : entry.constructorSelf.sum());
+            LogCallAdvice.appendDuration(report.append(" | Total: "),
+                    initializers ? entry.initializerTotal.sum() : entry.constructorTotal.sum());
+        }
+    }
+
+    private static String packageOf(Class<?> type) {
+        String name = type.getName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "(default package)" : name.substring(0, dot);
+    }
+
+    /**
+     * The times of one class, summed over all its constructors.
+     */
+    private static final class Entry {
+
+        private final Class<?> type;
+        private final LongAdder initializerCount = new LongAdder();
+        private final LongAdder initializerSelf = new LongAdder();
+        private final LongAdder initializerTotal = new LongAdder();
+        private final LongAdder constructorCount = new LongAdder();
+        private final LongAdder constructorSelf = new LongAdder();
+        private final LongAdder constructorTotal = new LongAdder();
+
+        Entry(Class<?> type) {
+            this.type = type;
+        }
+
+        void record(boolean initializer, long total, long self) {
+            if (initializer) {
+                initializerCount.increment();
+                initializerSelf.add(self);
+                initializerTotal.add(total);
+            } else {
+                constructorCount.increment();
+                constructorSelf.add(self);
+                constructorTotal.add(total);
+            }
+        }
+    }
+
+    /**
+     * The timed calls in progress on one thread.
+     */
+    private static final class Stack {
+
+        private final long[] startTimes = new long[MAX_DEPTH];
+        private final long[] nestedTimes = new long[MAX_DEPTH];
+        private int depth;
+    }
+}
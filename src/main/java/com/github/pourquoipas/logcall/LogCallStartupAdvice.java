@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import net.bytebuddy.asm.Advice;
+
+/**
+ * The timing advice woven into the constructors of the classes selected for startup profiling, see
+ * {@link LogCallStartup}; {@link TypeInitializer} is woven into their type initializers. It only hands the clock over
+ * to {@link LogCallStartup}, which does nothing once the application is ready.
+ */
+public final class LogCallStartupAdvice {
+
+    private LogCallStartupAdvice() {
+    }
+
+    @Advice.OnMethodEnter
+    public static int enter() {
+        return LogCallStartup.enter();
+    }
+
+    /**
+     * Constructors cannot catch the exceptions of the super constructor call, so this advice does not run when a
+     * constructor throws; {@link LogCallStartup} drops the calls left open when their caller exits.
+     */
+    @Advice.OnMethodExit
+    public static void exit(@Advice.Origin Class<?> type, @Advice.Origin("#m") String method, @Advice.Enter int depth) {
+        LogCallStartup.exit(type, method, depth);
+    }
+
+    /**
+     * The timing advice of type initializers, which also records the initializers that throw.
+     */
+    public static final class TypeInitializer {
+
+        private TypeInitializer() {
+        }
+
+        @Advice.OnMethodEnter
+        public static int enter() {
+            return LogCallStartup.enter();
+        }
+
+        @Advice.OnMethodExit(onThrowable = Throwable.class)
+        public static void exit(@Advice.Origin Class<?> type, @Advice.Origin("#m") String method, @Advice.Enter int depth) {
+            LogCallStartup.exit(type, method, depth);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link LogCall#customLog()} pattern compiled into a list of literal and placeholder segments.
+ * The weaver compiles each pattern once and stores the segments in a static field of the woven class,
+ * so at runtime the message is rendered in a single pass without scanning the pattern again.
+ */
+public final class LogCallTemplate {
+
+    static final int LITERAL = -1;
+    static final int METHOD_NAME = -2;
+    static final int CLASS_NAME = -3;
+    static final int PARAMS = -4;
+    static final int RETURN = -5;
+    static final int EXCEPTION = -6;
+
+    private static final String PARAM_INDEX_PREFIX = "param[";
+
+    /**
+     * One code per segment: a parameter index when {@code >= 0}, otherwise one of the constants above.
+     */
+    private final int[] codes;
+
+    /**
+     * The text of each {@link #LITERAL} segment. For {@link #EXCEPTION} it holds the raw placeholder,
+     * which is kept in the message when the method completed normally.
+     */
+    private final String[] literals;
+
+    private LogCallTemplate(int[] codes, String[] literals) {
+        this.codes = codes;
+        this.literals = literals;
+    }
+
+    /**
+     * Recreates a compiled template from its segments. Called from the static initializer of woven classes.
+     *
+     * @param codes    The segment codes produced by {@link #compile(String, String[])}.
+     * @param literals The segment literals produced by {@link #compile(String, String[])}.
+     * @return The template.
+     */
+    public static LogCallTemplate of(int[] codes, String[] literals) {
+        if (codes.length != literals.length) {
+            throw new IllegalArgumentException("Codes and literals must have the same length");
+        }
+        return new LogCallTemplate(codes, literals);
+    }
+
+    /**
+     * Parses a custom log pattern into segments. Unknown placeholders are kept as literal text.
+     *
+     * @param pattern        The pattern declared in {@link LogCall#customLog()}.
+     * @param parameterNames The names of the method parameters, used to resolve {@code {name}} placeholders.
+     * @return The compiled template.
+     */
+    public static LogCallTemplate compile(String pattern, String[] parameterNames) {
+        List<Integer> codes = new ArrayList<>();
+        List<String> literals = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+
+        int position = 0;
+        while (position < pattern.length()) {
+            int open = pattern.indexOf('{', position);
+            int close = open < 0 ? -1 : pattern.indexOf('}', open + 1);
+            if (close < 0) {
+                break;
+            }
+            int code = resolve(pattern.substring(open + 1, close), parameterNames);
+            if (code == LITERAL) {
+                // Not a placeholder: keep the brace and look for one starting right after it.
+                literal.append(pattern, position, open + 1);
+                position = open + 1;
+                continue;
+            }
+            literal.append(pattern, position, open);
+            flushLiteral(literal, codes, literals);
+            codes.add(code);
+            literals.add(code == EXCEPTION ? pattern.substring(open, close + 1) : null);
+            position = close + 1;
+        }
+        literal.append(pattern, position, pattern.length());
+        flushLiteral(literal, codes, literals);
+
+        int[] codeArray = new int[codes.size()];
+        for (int i = 0; i < codeArray.length; i++) {
+            codeArray[i] = codes.get(i);
+        }
+        return new LogCallTemplate(codeArray, literals.toArray(new String[0]));
+    }
+
+    private static void flushLiteral(StringBuilder literal, List<Integer> codes, List<String> literals) {
+        if (literal.length() > 0) {
+            codes.add(LITERAL);
+            literals.add(literal.toString());
+            literal.setLength(0);
+        }
+    }
+
+    private static int resolve(String placeholder, String[] parameterNames) {
+        switch (placeholder) {
+            case "methodName": return METHOD_NAME;
+            case "className":  return CLASS_NAME;
+            case "params":     return PARAMS;
+            case "return":     return RETURN;
+            case "exception":  return EXCEPTION;
+            default:           break;
+        }
+        if (placeholder.startsWith(PARAM_INDEX_PREFIX) && placeholder.endsWith("]")) {
+            try {
+                int index = Integer.parseInt(placeholder.substring(PARAM_INDEX_PREFIX.length(), placeholder.length() - 1));
+                if (index >= 0 && index < parameterNames.length) {
+                    return index;
+                }
+            } catch (NumberFormatException e) {
+                // Not an index placeholder, it may still be a parameter name.
+            }
+        }
+        for (int i = 0; i < parameterNames.length; i++) {
+            if (parameterNames[i].equals(placeholder)) {
+                return i;
+            }
+        }
+        return LITERAL;
+    }
+
+    /**
+     * @return true if the template renders any argument, through {@code {params}} or a single parameter placeholder.
+     */
+    public boolean usesArguments() {
+        for (int code : codes) {
+            if (code >= 0 || code == PARAMS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the template renders the return value.
+     */
+    public boolean usesReturn() {
+        for (int code : codes) {
+            if (code == RETURN) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static LogCallOutput output(LogCallOutput output, StringBuilder sb, int start) {
+        return output != null ? output : LogCallOutput.acquire(sb, start);
+    }
+
+    int[] codes() {
+        return codes;
+    }
+
+    String[] literals() {
+        return literals;
+    }
+
+    /**
+     * Renders the template into the given builder.
+     *
+     * @param sb         The builder to append to.
+     * @param className  The simple name of the declaring class.
+     * @param methodName The name of the method.
+     * @param values     The method arguments and the value returned by the method, or null if none was captured:
+     *                   there are no arguments and the return value is {@code null}.
+     * @param exception  The exception thrown by the method, or null.
+     */
+    public void appendTo(StringBuilder sb, String className, String methodName, LogCallValues values, Throwable exception) {
+        int start = sb.length();
+        LogCallOutput output = null;
+        try {
+            for (int i = 0; i < codes.length; i++) {
+                int code = codes[i];
+                if (code >= 0) {
+                    output = output(output, sb, start);
+                    if (values != null) {
+                        values.appendArgument(output, code);
+                    } else {
+                        output.append("null");
+                    }
+                    continue;
+                }
+                switch (code) {
+                    case LITERAL:     sb.append(literals[i]); break;
+                    case METHOD_NAME: sb.append(methodName); break;
+                    case CLASS_NAME:  sb.append(className); break;
+                    case RETURN:
+                        output = output(output, sb, start);
+                        if (values != null) {
+                            values.appendResult(output);
+                        } else {
+                            output.append("null");
+                        }
+                        break;
+                    case PARAMS:
+                        output = output(output, sb, start);
+                        for (int a = 0; values != null && a < values.getArgumentCount(); a++) {
+                            if (a > 0) {
+                                output.append(", ");
+                            }
+                            values.appendArgument(output, a);
+                        }
+                        break;
+                    case EXCEPTION:
+                        if (exception != null) {
+                            sb.append(LogCallAdvice.getCleanStackTrace(exception));
+                        } else {
+                            sb.append(literals[i]);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            if (output != null) {
+                output.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import org.apache.logging.log4j.util.Constants;
+
+/**
+ * The arguments and the return value of a logged call, captured without boxing.
+ * <p>
+ * The weaver generates, for each annotated method, the code that writes its arguments into this object with the
+ * setter of their exact type: primitives are kept in a {@code long[]} and only written as text when the message is
+ * rendered. The return value is stored after the arguments, at index {@link #getArgumentCount()}.
+ * When Log4j runs with thread locals enabled, one instance per thread is reused, so a call captures its values
+ * without allocating; the ring buffer copies them into its own slots.
+ */
+public final class LogCallValues {
+
+    private static final ThreadLocal<LogCallValues> REUSABLE = Constants.ENABLE_THREADLOCALS ? new ThreadLocal<>() : null;
+
+    /** Type of a slot not written, e.g. the return value of a method that threw. */
+    private static final char NONE = 0;
+    private static final char REFERENCE = 'L';
+
+    private char[] types = new char[8];
+    private long[] primitives = new long[8];
+    private Object[] references = new Object[8];
+    private int argumentCount;
+
+    /**
+     * Set while the values are being logged, so that a call logged while rendering them gets its own instance.
+     */
+    private boolean inUse;
+
+    LogCallValues() {
+    }
+
+    /**
+     * Returns an empty instance for a call, reusing the instance of the current thread when possible.
+     * It must be {@link #release() released} once the call is logged.
+     *
+     * @param argumentCount The number of arguments of the method.
+     */
+    public static LogCallValues acquire(int argumentCount) {
+        LogCallValues values = null;
+        if (REUSABLE != null) {
+            values = REUSABLE.get();
+            if (values == null) {
+                values = new LogCallValues();
+                REUSABLE.set(values);
+            } else if (values.inUse) {
+                values = null;
+            }
+        }
+        if (values == null) {
+            values = new LogCallValues();
+        }
+        values.reset(argumentCount);
+        values.inUse = true;
+        return values;
+    }
+
+    /**
+     * Wraps values that are already boxed.
+     */
+    public static LogCallValues of(Object[] args, Object result) {
+        int argumentCount = args == null ? 0 : args.length;
+        LogCallValues values = new LogCallValues();
+        values.reset(argumentCount);
+        for (int i = 0; i < argumentCount; i++) {
+            values.setObject(i, args[i]);
+        }
+        return values.setObject(argumentCount, result);
+    }
+
+    private void reset(int argumentCount) {
+        int capacity = argumentCount + 1;
+        if (types.length < capacity) {
+            types = new char[capacity];
+            primitives = new long[capacity];
+            references = new Object[capacity];
+        }
+        this.argumentCount = argumentCount;
+    }
+
+    /**
+     * Drops the references to the captured values so that they can be collected.
+     */
+    public void release() {
+        for (int i = 0; i <= argumentCount; i++) {
+            types[i] = NONE;
+            references[i] = null;
+        }
+        inUse = false;
+    }
+
+    /**
+     * Copies the values of another call, reusing the arrays of this instance.
+     */
+    void copyFrom(LogCallValues other) {
+        reset(other.argumentCount);
+        System.arraycopy(other.types, 0, types, 0, argumentCount + 1);
+        System.arraycopy(other.primitives, 0, primitives, 0, argumentCount + 1);
+        System.arraycopy(other.references, 0, references, 0, argumentCount + 1);
+    }
+
+    // --- Setters called by the woven code; each returns this so that the calls can be chained ---
+
+    public LogCallValues setBoolean(int index, boolean value) {
+        return setPrimitive(index, 'Z', value ? 1 : 0);
+    }
+
+    public LogCallValues setByte(int index, byte value) {
+        return setPrimitive(index, 'B', value);
+    }
+
+    public LogCallValues setChar(int index, char value) {
+        return setPrimitive(index, 'C', value);
+    }
+
+    public LogCallValues setShort(int index, short value) {
+        return setPrimitive(index, 'S', value);
+    }
+
+    public LogCallValues setInt(int index, int value) {
+        return setPrimitive(index, 'I', value);
+    }
+
+    public LogCallValues setLong(int index, long value) {
+        return setPrimitive(index, 'J', value);
+    }
+
+    public LogCallValues setFloat(int index, float value) {
+        return setPrimitive(index, 'F', Float.floatToRawIntBits(value));
+    }
+
+    public LogCallValues setDouble(int index, double value) {
+        return setPrimitive(index, 'D', Double.doubleToRawLongBits(value));
+    }
+
+    public LogCallValues setObject(int index, Object value) {
+        types[index] = REFERENCE;
+        references[index] = value;
+        return this;
+    }
+
+    private LogCallValues setPrimitive(int index, char type, long value) {
+        types[index] = type;
+        primitives[index] = value;
+        return this;
+    }
+
+    // --- Read side ---
+
+    public int getArgumentCount() {
+        return argumentCount;
+    }
+
+    /**
+     * @return The argument at the given index, boxed if it is a primitive.
+     */
+    public Object getArgument(int index) {
+        return get(index);
+    }
+
+    /**
+     * @return The return value, boxed if it is a primitive, or null if it was not captured.
+     */
+    public Object getResult() {
+        return get(argumentCount);
+    }
+
+    /**
+     * @return true if the arguments were captured.
+     */
+    boolean hasArguments() {
+        return argumentCount > 0 && types[0] != NONE;
+    }
+
+    /**
+     * @return true if the return value was captured.
+     */
+    boolean hasResult() {
+        return types[argumentCount] != NONE;
+    }
+
+    /**
+     * @return The JVM descriptor of the type of a value, {@code 'L'} for references, or 0 if it was not captured.
+     */
+    char getType(int index) {
+        return types[index];
+    }
+
+    /**
+     * @return The bits of a primitive value, floats and doubles in their raw IEEE 754 layout.
+     */
+    long getPrimitive(int index) {
+        return primitives[index];
+    }
+
+    Object getReference(int index) {
+        return references[index];
+    }
+
+    /**
+     * Writes an argument; primitives are written without being boxed.
+     */
+    public void appendArgument(LogCallOutput output, int index) {
+        append(output, index);
+    }
+
+    /**
+     * Writes the return value; primitives are written without being boxed.
+     */
+    public void appendResult(LogCallOutput output) {
+        append(output, argumentCount);
+    }
+
+    private void append(LogCallOutput output, int index) {
+        long value = primitives[index];
+        switch (types[index]) {
+            case 'Z': output.append(value != 0); break;
+            case 'C': output.append((char) value); break;
+            case 'B':
+            case 'S':
+            case 'I':
+            case 'J': output.append(value); break;
+            case 'F': output.append(Float.intBitsToFloat((int) value)); break;
+            case 'D': output.append(Double.longBitsToDouble(value)); break;
+            default:  output.render(references[index]); break;
+        }
+    }
+
+    private Object get(int index) {
+        long value = primitives[index];
+        switch (types[index]) {
+            case 'Z': return value != 0;
+            case 'C': return (char) value;
+            case 'B': return (byte) value;
+            case 'S': return (short) value;
+            case 'I': return (int) value;
+            case 'J': return value;
+            case 'F': return Float.intBitsToFloat((int) value);
+            case 'D': return Double.longBitsToDouble(value);
+            default:  return references[index];
+        }
+    }
+}
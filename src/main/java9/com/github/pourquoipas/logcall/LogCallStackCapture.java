@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+/**
+ * Captures the call stack of a method logged with {@link LogCall#logStackTrace()}, without the frames of LogCall
+ * and bounded to {@code logcall.stackTrace.maxDepth} frames (default 64).
+ * <p>
+ * This is the Java 9 version of the multi-release jar: the {@link StackWalker} stops after the last frame kept,
+ * so the cost no longer grows with the depth of the stack. The frames are formatted only when the message is rendered.
+ */
+final class LogCallStackCapture {
+
+    static final int MAX_DEPTH = Math.max(1, Integer.getInteger("logcall.stackTrace.maxDepth", 64));
+
+    private static final StackWalker WALKER = StackWalker.getInstance();
+
+    private LogCallStackCapture() {
+    }
+
+    static StackTraceElement[] capture() {
+        return WALKER.walk(frames -> frames
+                .dropWhile(frame -> LogCallAdvice.isLogCallFrame(frame.getClassName()))
+                .limit(MAX_DEPTH)
+                .map(StackWalker.StackFrame::toStackTraceElement)
+                .toArray(StackTraceElement[]::new));
+    }
+}
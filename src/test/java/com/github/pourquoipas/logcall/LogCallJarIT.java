@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2025 Gianluca Terenziani
+ *
+ * Questo file è parte di LogCall.
+ * LogCall è distribuito sotto i termini della licenza
+ * Creative Commons Attribution-NonCommercial-ShareAlike 4.0 International.
+ *
+ * Dovresti aver ricevuto una copia della licenza insieme a questo progetto.
+ * In caso contrario, la puoi trovare su: http://creativecommons.org/licenses/by-nc-sa/4.0/
+ */
+package com.github.pourquoipas.logcall;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the packaged jar, run by failsafe: the classes come from the multi-release jar, so on Java 9 and later
+ * the versioned classes under {@code META-INF/versions/9} are the ones loaded.
+ */
+class LogCallJarIT {
+
+    @Test
+    void testStackCapture_walksTheStackOnJava9() throws Exception {
+        // Arrange
+        String location = LogCallStackCapture.class.getProtectionDomain().getCodeSource().getLocation().toString();
+
+        // Act
+        StackTraceElement[] stack = captureAtDepth(LogCallStackCapture.MAX_DEPTH * 2);
+
+        // Assert
+        assertTrue(location.endsWith(".jar"), "The classes should be loaded from the packaged jar: " + location);
+        assertNotNull(LogCallStackCapture.class.getDeclaredField("WALKER"), "The StackWalker version should be loaded");
+        assertEquals(LogCallStackCapture.MAX_DEPTH, stack.length, "The stack should be cut at the limit");
+        assertEquals("captureAtDepth", stack[0].getMethodName(), "The LogCall frames should be removed: " + stack[0]);
+        assertEquals("captureAtDepth", stack[stack.length - 1].getMethodName(), "The innermost frames should be kept");
+    }
+
+    private static StackTraceElement[] captureAtDepth(int depth) {
+        return depth == 0 ? LogCallStackCapture.capture() : captureAtDepth(depth - 1);
+    }
+}
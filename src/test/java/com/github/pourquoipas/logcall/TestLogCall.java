@@ -10,6 +10,13 @@
  */
 package com.github.pourquoipas.logcall;
 
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.description.annotation.AnnotationDescription;
+import net.bytebuddy.description.modifier.Visibility;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.dynamic.loading.ByteArrayClassLoader;
+import net.bytebuddy.implementation.FixedValue;
+import net.bytebuddy.pool.TypePool;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.core.LogEvent;
@@ -19,13 +26,37 @@ import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.LoggerConfig;
 import org.apache.logging.log4j.core.config.Property;
 import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.util.Constants;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -35,6 +66,7 @@ public class TestLogCall {
     // Un appender custom per catturare i log in una lista.
     private static class ListAppender extends AbstractAppender {
         private final List<String> messages = new ArrayList<>();
+        private final List<Level> levels = new ArrayList<>();
 
         protected ListAppender(String name, org.apache.logging.log4j.core.Filter filter, org.apache.logging.log4j.core.Layout<? extends Serializable> layout) {
             super(name, filter, layout, false, Property.EMPTY_ARRAY);
@@ -50,14 +82,20 @@ public class TestLogCall {
             // If you need the full pattern, apply it here or ensure layout is configured.
             // For simple capture, event.getMessage().getFormattedMessage() is often enough
             messages.add(event.getMessage().getFormattedMessage()); // Capture raw message for easier assertion
+            levels.add(event.getLevel());
         }
 
         public List<String> getMessages() {
             return messages;
         }
 
+        public List<Level> getLevels() {
+            return levels;
+        }
+
         public void clear() {
             messages.clear();
+            levels.clear();
         }
     }
 
@@ -223,6 +261,25 @@ public class TestLogCall {
         assertTrue(logMessage.contains("| Return: OK-Test"), "Log message should contain return value");
     }
 
+    @Test
+    void testPrimitiveLog_capturesEveryPrimitiveTypeWithoutBoxing() {
+        // Arrange
+        TestService service = new TestService();
+
+        // Act
+        service.primitiveLog(true, (byte) -8, 'x', (short) 300, Integer.MIN_VALUE, Long.MAX_VALUE, 1.5f, -0.25);
+
+        // Assert
+        assertEquals(1, listAppender.getMessages().size(), "Expected 1 log message for primitiveLog");
+        String logMessage = listAppender.getMessages().get(0);
+        assertTrue(logMessage.contains("| Params: [true, -8, x, 300, -2147483648, 9223372036854775807, 1.5, -0.25]"
+                + " | Return: -2.305843009213694E18"), "Primitives should be rendered like their boxed value: " + logMessage);
+        LogCallValues values = LogCallValues.acquire(1).setFloat(0, 2.5f).setChar(1, 'y');
+        assertEquals(2.5f, values.getArgument(0), "The boxing getter should return the original type");
+        assertEquals('y', values.getResult(), "The return value should be stored after the arguments");
+        values.release();
+    }
+
     @Test
     void testExceptionLog_logsExceptionStackTrace() {
         // Arrange
@@ -241,6 +298,86 @@ public class TestLogCall {
         assertTrue(logMessage.contains("java.lang.IllegalStateException: Test Exception"), "Log message should contain exception details");
         // Verifica che lo stacktrace non contenga l'aspect stesso
         assertFalse(logMessage.contains("com.github.pourquoipas.logcall.LogCallAspect"), "Log message should not contain AspectJ internal classes");
+
+    }
+
+    @Test
+    void testExceptionLog_deduplicatesRepeatedStackTraces() {
+        // Arrange
+        TestService service = new TestService();
+
+        // Act
+        for (int i = 0; i < 3; i++) {
+            assertThrows(IllegalStateException.class, () -> service.exceptionLog("fail"));
+        }
+
+        // Assert
+        assertEquals(3, listAppender.getMessages().size(), "Expected 3 log messages: " + listAppender.getMessages());
+        String first = listAppender.getMessages().get(0);
+        String third = listAppender.getMessages().get(2);
+        String id = first.substring(first.indexOf("Exception Stack Trace: #") + 24).substring(0, 8);
+        assertTrue(first.contains("Exception Stack Trace: #" + id + "\njava.lang.IllegalStateException: Test Exception\n\tat "), "The first occurrence should be logged in full: " + first);
+        assertTrue(third.endsWith("Exception Stack Trace: #" + id + " (occurrence 3, logged in full at the first one) java.lang.IllegalStateException: Test Exception"),
+                "Later occurrences should only reference the first one: " + third);
+
+        LogCallExceptionCache cache = new LogCallExceptionCache(TimeUnit.MINUTES.toNanos(1), 1);
+        assertEquals(1, cache.record(1));
+        assertEquals(2, cache.record(1));
+        assertEquals(0, cache.record(2), "A full cache should let new exceptions be logged in full");
+    }
+
+    @Test
+    void testCoalescer_logsTheFirstCallAndASummaryPerWindow() {
+        // Arrange
+        LogCallSite site = wovenSite("debugLog", "(J)J");
+        LogCallCoalescer coalescer = new LogCallCoalescer(TimeUnit.MINUTES.toNanos(1), 2);
+        IllegalStateException exception = new IllegalStateException("Boom");
+
+        // Act & Assert
+        assertFalse(coalescer.coalesce(site, LogCallValues.of(new Object[]{1L}, 2L), null, 1_000_000L), "The first call should be logged");
+        assertTrue(coalescer.coalesce(site, LogCallValues.of(new Object[]{1L}, 2L), null, 3_000_000L), "An identical call should be coalesced");
+        assertTrue(coalescer.coalesce(site, LogCallValues.of(new Object[]{1L}, 2L), null, 2_000_000L), "An identical call should be coalesced");
+        assertTrue(coalescer.coalesce(site, LogCallValues.of(new Object[]{new StringBuilder("1")}, "2"), null, 2_500_000L),
+                "A call logging the same text should be coalesced, whatever the identity of its values");
+        assertFalse(coalescer.coalesce(site, LogCallValues.of(new Object[]{5L}, 6L), null, 1_000_000L), "Other arguments should be logged");
+        assertFalse(coalescer.coalesce(site, LogCallValues.of(new Object[]{1L}, null), exception, 1_000_000L), "A full coalescer should log new shapes");
+        assertFalse(coalescer.coalesce(site, LogCallValues.of(new Object[]{1L}, null), exception, 1_000_000L), "A full coalescer should log new shapes");
+        assertTrue(listAppender.getMessages().isEmpty(), "No summary should be logged before the window expires: " + listAppender.getMessages());
+
+        coalescer.flushExpired(System.nanoTime() + TimeUnit.MINUTES.toNanos(2));
+        assertEquals(Collections.singletonList("Method 'debugLog' | Repeated: 3 | Window: 60000ms | Min: 2.000ms | Max: 3.000ms"),
+                listAppender.getMessages(), "Only the windows with coalesced calls should be summarized");
+        assertFalse(coalescer.coalesce(site, LogCallValues.of(new Object[]{1L}, 2L), null, 1_000_000L), "A new window should log its first call");
+
+        LogCallSite quiet = wovenSite("exceptionLog", "(Ljava/lang/String;)V");
+        LogCallCoalescer other = new LogCallCoalescer(TimeUnit.MINUTES.toNanos(1), 2);
+        assertFalse(other.coalesce(quiet, LogCallValues.of(new Object[]{"a"}, null), null, 1_000_000L), "The first call should be logged");
+        assertTrue(other.coalesce(quiet, LogCallValues.of(new Object[]{"b"}, null), null, 1_000_000L),
+                "Arguments the message does not log should not tell calls apart");
+    }
+
+    @Test
+    void testRenderers_boundArraysCollectionsAndMessageSize() {
+        // Arrange
+        TestService service = new TestService();
+        char[] longText = new char[LogCallOutput.MAX_CHARS * 2];
+        Arrays.fill(longText, 'x');
+
+        // Act
+        service.renderedLog(new byte[]{1, 2, 3}, "short");
+        service.renderedLog(new byte[1000], "short");
+        service.renderedLog(new byte[1], new String(longText));
+
+        // Assert
+        assertEquals(3, listAppender.getMessages().size(), "Expected 3 log messages: " + listAppender.getMessages());
+        assertTrue(listAppender.getMessages().get(0).startsWith("Method 'renderedLog' | Params: [[1, 2, 3], short] | Return: [0, 1, 2] | "),
+                listAppender.getMessages().get(0));
+        String large = listAppender.getMessages().get(1);
+        assertTrue(large.contains("Params: [[0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, ... (1000 elements)], short]"), large);
+        assertTrue(large.contains("Return: [0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, ... (1000 elements)] | "), large);
+        String truncated = listAppender.getMessages().get(2);
+        assertTrue(truncated.contains("xxx...] | Return:  | Duration: "), "The values should be cut at the budget: " + truncated.substring(truncated.length() - 80));
+        assertTrue(truncated.length() < LogCallOutput.MAX_CHARS + 100, "The message should stay within the budget");
     }
 
     @Test
@@ -261,6 +398,26 @@ public class TestLogCall {
         assertTrue(logMessage.contains("Call Stack Trace:"), "Log message should contain 'Call Stack Trace:'");
         assertTrue(logMessage.contains("at com.github.pourquoipas.logcall.TestLogCall.testStackTraceLog"), "Log message should contain calling test method");
         assertFalse(logMessage.contains("com.github.pourquoipas.logcall.LogCallAspect"), "Log message should not contain AspectJ internal classes");
+        assertFalse(logMessage.contains("LogCallAdvice") || logMessage.contains("LogCallStackCapture"), "Log message should not contain LogCall frames");
+        assertTrue(logMessage.contains("Call Stack Trace:\n\tat com.github.pourquoipas.logcall.TestService.stackTraceLog"), "The stack should start at the logged method");
+        assertTrue(logMessage.split("\n\tat ").length - 1 <= LogCallStackCapture.MAX_DEPTH, "The stack should be bounded");
+    }
+
+    @Test
+    void testStackTraceLog_cutsDeepStacks() {
+        // Arrange
+        TestService service = new TestService();
+
+        // Act: far more frames than the limit between the test and the logged method.
+        callAtDepth(LogCallStackCapture.MAX_DEPTH * 2, service::stackTraceLog);
+
+        // Assert
+        assertEquals(1, listAppender.getMessages().size(), "Expected 1 log message for stackTraceLog");
+        String logMessage = listAppender.getMessages().get(0);
+        String[] frames = logMessage.substring(logMessage.indexOf("Call Stack Trace:")).split("\n\tat ");
+        assertEquals(LogCallStackCapture.MAX_DEPTH, frames.length - 1, "The stack should be cut at the limit");
+        assertTrue(frames[1].startsWith("com.github.pourquoipas.logcall.TestService.stackTraceLog"), "The LogCall frames should be removed: " + frames[1]);
+        assertTrue(frames[frames.length - 1].startsWith(TestLogCall.class.getName() + ".callAtDepth"), "The innermost frames should be kept: " + frames[frames.length - 1]);
     }
 
     @Test
@@ -277,4 +434,745 @@ public class TestLogCall {
         String logMessage = listAppender.getMessages().get(0);
         assertTrue(logMessage.contains("Custom log for customLog with param ParameterValue and return CustomReturn"), "Custom log message should be correctly formatted: " + logMessage) ;
     }
+
+    @Test
+    void testCustomLog_rendersMethodsWithNothingToCapture() {
+        // Arrange
+        TestService service = new TestService();
+        LogCallSite site = wovenSite("noArgs", "()V");
+
+        // Act
+        service.noArgs();
+        LogCallMapMessage structured = LogCallMapMessage.of(site, null, null, 1_000L, null, null, 0, 0, null);
+
+        // Assert
+        assertEquals(1, listAppender.getMessages().size(), "Expected 1 log message for noArgs: " + listAppender.getMessages());
+        assertEquals("noArgs() -> null", listAppender.getMessages().get(0), "No arguments and no return value should be rendered");
+        assertEquals("noArgs() -> null", structured.getData().get("message"), "The structured message should render the pattern");
+    }
+
+    @Test
+    void testCustomLog_resolvesIndexAndNamePlaceholders() {
+        // Arrange
+        TestService service = new TestService();
+
+        // Act
+        service.customLogPlaceholders("abc", 21);
+
+        // Assert
+        assertEquals(1, listAppender.getMessages().size(), "Expected 1 log message for customLogPlaceholders");
+        String logMessage = listAppender.getMessages().get(0);
+        assertEquals("TestService.customLogPlaceholders(21, abc) -> 42 {unknown} {param[9]} [abc, 21]", logMessage,
+                "Unknown placeholders should be kept as literal text");
+    }
+
+    @Test
+    void testDisabledLevel_logsNothing() {
+        // Arrange
+        TestService service = new TestService();
+        ctx.getConfiguration().getLoggerConfig(testServiceLog4jLogger.getName()).setLevel(Level.INFO);
+        ctx.updateLoggers();
+
+        // Act
+        long result = service.debugLog(41L);
+
+        // Assert
+        assertEquals(42L, result, "The woven method should still return its value");
+        assertTrue(listAppender.getMessages().isEmpty(), "No message expected when the level is disabled");
+
+        // Enabling the level at runtime is picked up by the next call.
+        ctx.getConfiguration().getLoggerConfig(testServiceLog4jLogger.getName()).setLevel(Level.ALL);
+        ctx.updateLoggers();
+        service.debugLog(1L);
+        assertEquals(1, listAppender.getMessages().size(), "Expected 1 log message once the level is enabled");
+        assertTrue(listAppender.getMessages().get(0).contains("| Params: [1] | Return: 2"), "Log message should contain parameters and return value");
+    }
+
+    @Test
+    void testNestedLog_whileRenderingMessage() {
+        // Arrange
+        TestService service = new TestService();
+        Object argument = new Object() {
+            @Override
+            public String toString() {
+                // Logs another call while the outer message is being rendered.
+                return service.simpleLog("inner", 1);
+            }
+        };
+
+        // Act
+        service.nestedLog(argument);
+        service.simpleLog("after", 2);
+
+        // Assert
+        List<String> messages = listAppender.getMessages();
+        assertEquals(3, messages.size(), "Expected 3 log messages: " + messages);
+        assertTrue(messages.get(0).contains("Method 'simpleLog' | Params: [inner, 1]"), "Inner call should be logged first: " + messages.get(0));
+        assertTrue(messages.get(1).contains("Method 'nestedLog' | Params: [OK-inner]"), "Outer call should keep its own data: " + messages.get(1));
+        assertTrue(messages.get(2).contains("Method 'simpleLog' | Params: [after, 2]"), "Reused message should not leak data: " + messages.get(2));
+        LogCallOutput output = LogCallOutput.acquire(new StringBuilder(), 0);
+        output.release();
+        LogCallOutput again = LogCallOutput.acquire(new StringBuilder(), 0);
+        again.release();
+        assertTrue(!Constants.ENABLE_THREADLOCALS || output == again, "The output of the thread should be reused");
+    }
+
+    @Test
+    void testRingBuffer_dropsOnOverflowAndLogsFromConsumer() {
+        // Arrange
+        LogCallSite site = wovenSite("simpleLog", "(Ljava/lang/String;I)Ljava/lang/String;");
+        LogCallRingBuffer ringBuffer = new LogCallRingBuffer(4, LogCallRingBuffer.OverflowPolicy.DROP, 1, LogCallRingBuffer.WaitPolicy.PARK);
+
+        // Act: the consumer is not running yet, so only the first 4 events fit.
+        for (int i = 0; i < 6; i++) {
+            // The same values are reused for every call: the ring buffer must copy them.
+            LogCallValues values = LogCallValues.acquire(2).setObject(0, "async").setInt(1, i).setObject(2, "OK-async");
+            ringBuffer.publish(site, 0L, 5_000_000L, values, null, null, null);
+            values.release();
+        }
+        ringBuffer.start();
+        assertTrue(ringBuffer.flush(5, TimeUnit.SECONDS), "The ring buffer should be drained");
+        ringBuffer.stop(5, TimeUnit.SECONDS);
+
+        // Assert
+        assertEquals(2, ringBuffer.getDroppedCount(), "Events beyond the capacity should be dropped");
+        List<String> messages = listAppender.getMessages();
+        assertEquals(4, messages.size(), "Expected 4 log messages: " + messages);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(messages.get(i).contains("| Params: [async, " + i + "] | Return: OK-async | Duration: 5.000ms"), "Events should be logged in order: " + messages.get(i));
+            assertTrue(messages.get(i).contains("| Thread: " + Thread.currentThread().getName()), "The calling thread should be logged: " + messages.get(i));
+        }
+    }
+
+    @Test
+    void testBinaryLog_rollsSegmentsAndDecodes(@TempDir Path directory) throws Exception {
+        // Arrange
+        LogCallSite site = wovenSite("simpleLog", "(Ljava/lang/String;I)Ljava/lang/String;");
+        LogCallBinaryLog binaryLog = new LogCallBinaryLog(directory, 4096, 8);
+
+        // Act: about 50 bytes per call, so the calls span more than 10 segments.
+        for (int i = 0; i < 1000; i++) {
+            LogCallValues values = LogCallValues.acquire(2).setObject(0, "binary").setInt(1, i).setObject(2, "OK, binary");
+            binaryLog.write(site, 1_000_000L * i, 5_000_000L, values, null);
+            values.release();
+        }
+        binaryLog.write(site, 0L, 1_000L, null, new IllegalStateException("A rather long failure message"));
+
+        // Assert
+        List<Path> segments = LogCallBinaryDecoder.segments(directory);
+        assertTrue(segments.size() > 10, "The calls should span more than 10 segments: " + segments);
+        StringBuilder lines = new StringBuilder();
+        LogCallBinaryDecoder.decodeDirectory(directory, false, lines);
+        String[] decoded = lines.toString().split("\n");
+        assertEquals(0, binaryLog.getDroppedCount(), "No call should be dropped");
+        assertEquals(1001, decoded.length, "Every call should be decoded");
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(decoded[i].contains(" INFO [" + Thread.currentThread().getName() + "] " + TestService.class.getName()
+                    + " - Method 'simpleLog' | Params: [binary, " + i + "] | Return: OK, bina | Duration: 5.000ms"),
+                    "Calls should be decoded in order, with texts cut: " + decoded[i]);
+        }
+        assertTrue(decoded[1000].endsWith("| Threw Exception: java.lang.IllegalStateException: A rather | Duration: 0.001ms"), "The exception should be decoded: " + decoded[1000]);
+
+        StringBuilder csv = new StringBuilder();
+        LogCallBinaryDecoder.decode(segments.get(0), true, csv);
+        assertTrue(csv.toString().split("\n")[0].endsWith(",INFO," + Thread.currentThread().getName() + "," + TestService.class.getName()
+                + ",simpleLog,5000000,\"binary, 0\",\"OK, bina\","), "CSV fields should be quoted: " + csv);
+    }
+
+    @Test
+    void testMapMessage_carriesCallAsFields() {
+        // Arrange
+        LogCallSite site = wovenSite("simpleLog", "(Ljava/lang/String;I)Ljava/lang/String;");
+        LogCallValues values = LogCallValues.acquire(2).setObject(0, "structured").setInt(1, 7).setObject(2, new int[]{1, 2});
+        AtomicInteger renders = new AtomicInteger();
+        Object counted = new Object() {
+            @Override
+            public String toString() {
+                return "rendered " + renders.incrementAndGet();
+            }
+        };
+
+        // Act
+        LogCallMapMessage message = LogCallMapMessage.of(site, values, null, 1_500L, null, null, 0, 0, null);
+        LogCallMapMessage failure = LogCallMapMessage.of(site, null, new IllegalStateException("Boom"), 10L, null, null, 0xABCDEFL, 2, null);
+        values.release();
+        LogCallValues later = LogCallValues.acquire(2).setObject(0, counted).setInt(1, 8).setObject(2, "OK");
+        LogCallMapMessage lazy = LogCallMapMessage.of(site, later, null, 2_000L, null, null, 0, 0, null);
+        later.release();
+
+        // Assert
+        assertEquals(0, renders.get(), "Nothing should be rendered before the message is read");
+        assertEquals(2_000L, lazy.getDurationNanos());
+        assertEquals("rendered 1", lazy.getData().get("param." + site.getParameterNames()[0]), "The values should be copied");
+        assertEquals("rendered 1", lazy.get("param." + site.getParameterNames()[0]), "The map should be built once");
+        LogCallMapMessage extended = LogCallMapMessage.of(site, null, null, 3_000L, null, null, 0, 0, null).with("retries", 3);
+        assertEquals("simpleLog", extended.getData().get("method"), "A field added first should not hide the call");
+        assertEquals(3, extended.getData().get("retries"), "A field added first should be kept");
+        assertEquals(3, LogCallMapMessage.of(site, null, null, 3_000L, null, null, 0, 0, null).getParameters().length,
+                "The parameters should hold the call: class, method and duration");
+        String[] names = site.getParameterNames();
+        assertEquals(TestService.class.getName(), message.getData().get("class"), "The class should be a field");
+        assertEquals("simpleLog", message.getData().get("method"), "The method should be a field");
+        assertEquals(1_500L, message.getData().get("durationNanos"), "The duration should stay a number");
+        assertEquals("structured", message.getData().get("param." + names[0]), "Strings should be kept");
+        assertEquals(7, message.getData().get("param." + names[1]), "Primitives should stay numbers");
+        assertEquals("[1, 2]", message.getData().get("return"), "Other objects should be rendered");
+        assertTrue(message.getFormattedMessage(new String[]{"JSON"}).contains("\"durationNanos\":1500"),
+                "JSON layouts should write numbers: " + message.getFormattedMessage(new String[]{"JSON"}));
+        assertEquals("java.lang.IllegalStateException: Boom", failure.getData().get("exception"), "The exception should be a field");
+        assertEquals("00abcdef", failure.getData().get("exceptionId"), "Repeated exceptions should carry their id");
+        assertFalse(failure.getData().containsKey("return"), "No return value should be logged for a failed call");
+    }
+
+    @Test
+    void testControl_overridesMethodAtRuntime() throws Exception {
+        // Arrange
+        TestService service = new TestService();
+        service.debugLog(1);
+        ObjectName name = new ObjectName("com.github.pourquoipas.logcall:type=Control");
+        int id = (Integer) ManagementFactory.getPlatformMBeanServer().invoke(name, "getMethodId",
+                new Object[]{TestService.class.getName(), "debugLog"}, new String[]{String.class.getName(), String.class.getName()});
+        LogCallControl control = LogCallControl.getInstance();
+
+        try {
+            // Act
+            control.setEnabled(id, false);
+            service.debugLog(2);
+            control.setEnabled(id, true);
+            control.setOption(id, "logParameters", "false");
+            control.setOption(id, "logStackTrace", "true");
+            control.setLevel(id, "error");
+            String[] methods = control.getMethods();
+            service.debugLog(3);
+            control.reset(id);
+            service.debugLog(4);
+
+            // Assert
+            List<String> messages = listAppender.getMessages();
+            assertEquals(3, messages.size(), "The disabled call should not be logged: " + messages);
+            assertTrue(messages.get(1).startsWith("Method 'debugLog' | Return: 4 | Duration: "), "Parameters should be turned off: " + messages.get(1));
+            assertTrue(messages.get(1).contains("\nCall Stack Trace:"), "The stack trace should be turned on: " + messages.get(1));
+            assertTrue(messages.get(2).startsWith("Method 'debugLog' | Params: [4] | Return: 5"), "Reset should restore the annotation: " + messages.get(2));
+            assertTrue(Arrays.stream(methods).anyMatch(method -> method.startsWith(id + " " + TestService.class.getName() + ".debugLog(J)J level=ERROR logParameters=false")),
+                    "The overrides should be listed: " + Arrays.toString(methods));
+        } finally {
+            control.resetAll();
+        }
+    }
+
+    @Test
+    @Tag("overhead")
+    void testOverhead_countsCallsAndAdviceTime() throws Exception {
+        // Arrange: this test runs alone with -Dlogcall.overhead=true, see the overhead-test execution in pom.xml.
+        TestService service = new TestService();
+        service.debugLog(1);
+        ObjectName name = new ObjectName("com.github.pourquoipas.logcall:type=Overhead,class=" + TestService.class.getName()
+                + ",method=" + ObjectName.quote("debugLog(J)J"));
+        long invocations = (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Invocations");
+        long emitted = (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Emitted");
+        long suppressed = (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Suppressed");
+        long adviceNanos = (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "AdviceNanos");
+        LogCallControl control = LogCallControl.getInstance();
+        int id = control.getMethodId(TestService.class.getName(), "debugLog");
+
+        try {
+            // Act
+            service.debugLog(2);
+            service.debugLog(3);
+            long loggedNanos = (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "AdviceNanos");
+            control.setEnabled(id, false);
+            service.debugLog(4);
+
+            // Assert
+            assertEquals(invocations + 3, (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Invocations"),
+                    "Every call should be counted");
+            assertEquals(emitted + 2, (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Emitted"),
+                    "The logged calls should be counted as emitted");
+            assertEquals(suppressed + 1, (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Suppressed"),
+                    "The disabled call should be counted as suppressed");
+            assertTrue(loggedNanos > adviceNanos, "The time spent logging should be counted");
+            assertTrue((Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "AdviceNanos") > loggedNanos,
+                    "The time spent deciding not to log should be counted");
+        } finally {
+            control.resetAll();
+        }
+    }
+
+    @Test
+    void testSite_isCreatedOncePerMethod() {
+        // Arrange
+        LogCallSite site = wovenSite("debugLog", "(J)J");
+
+        // Act
+        LogCallSite again = LogCallSite.of(TestService.class, "debugLog", "(J)J", null);
+
+        // Assert
+        assertSame(site, again, "A method should keep a single site and a single set of MBeans");
+        assertNull(site.getOverhead(), "The overhead counters should be off by default");
+    }
+
+    @Test
+    void testControl_namesMethodsAndForgetsUnloadedClasses() throws Exception {
+        // Arrange
+        TestService service = new TestService();
+        LogCallControl control = LogCallControl.getInstance();
+        String className = "com.github.pourquoipas.logcall.UnloadedTarget";
+        byte[] original = new ByteBuddy()
+                .subclass(Object.class)
+                .name(className)
+                .defineMethod("greet", String.class, Visibility.PUBLIC)
+                .intercept(FixedValue.value("Hello"))
+                .annotateMethod(AnnotationDescription.Builder.ofType(LogCall.class).define("aggregate", true).build())
+                .make()
+                .getBytes();
+        ClassFileLocator locator = new ClassFileLocator.Compound(ClassFileLocator.Simple.of(className, original),
+                ClassFileLocator.ForClassLoader.of(getClass().getClassLoader()));
+        byte[] woven = LogCallClassWeaver.weaveClass(className, TypePool.Default.of(locator), locator, new ByteBuddy());
+        ObjectName histogram = new ObjectName("com.github.pourquoipas.logcall:type=Histogram,class=" + className
+                + ",method=" + ObjectName.quote("greet()Ljava/lang/String;"));
+
+        try {
+            // Act: the names do not depend on the ids of this run.
+            control.setEnabled(TestService.class.getName() + ".debugLog", false);
+            service.debugLog(1);
+            control.reset(TestService.class.getName() + ".debugLog(J)J");
+            service.debugLog(2);
+
+            // Assert
+            assertEquals(1, listAppender.getMessages().size(), "Only the call made after the reset should be logged: " + listAppender.getMessages());
+            assertTrue(listAppender.getMessages().get(0).startsWith("Method 'debugLog' | Params: [2]"), listAppender.getMessages().get(0));
+            assertThrows(IllegalArgumentException.class, () -> control.reset(TestService.class.getName() + ".missing"));
+        } finally {
+            control.resetAll();
+        }
+
+        // Act: load the class in its own class loader, then drop the loader.
+        WeakReference<ClassLoader> loader = loadAndForget(className, woven);
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(histogram), "The histogram MBean should be registered");
+        for (int i = 0; i < 50 && loader.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        LogCallAggregator.report();
+
+        // Assert
+        assertNull(loader.get(), "The registries should not keep the class loader alive");
+        assertFalse(Arrays.stream(control.getMethods()).anyMatch(method -> method.contains(className)),
+                "An unloaded method should no longer be listed");
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(histogram), "The MBean of an unloaded method should be unregistered");
+    }
+
+    private WeakReference<ClassLoader> loadAndForget(String className, byte[] classFile) throws Exception {
+        ClassLoader loader = new ByteArrayClassLoader(getClass().getClassLoader(), Collections.singletonMap(className, classFile));
+        // Initializing the class creates and registers its site.
+        Class.forName(className, true, loader);
+        return new WeakReference<>(loader);
+    }
+
+    @Test
+    void testAsyncLog_logsWhenTheFutureCompletes() throws Exception {
+        // Arrange
+        TestService service = new TestService();
+
+        // Act: the advice registers its callback when asyncLog returns, so the future completes afterwards.
+        CompletableFuture<String> future = service.asyncLog("x", 1);
+        Thread.sleep(50);
+        Thread completer = new Thread(() -> service.pending.complete("Done"), "LogCall-Completer");
+        completer.start();
+        completer.join();
+        String result = future.get(5, TimeUnit.SECONDS);
+        assertThrows(ExecutionException.class, () -> service.asyncFailLog().toCompletableFuture().get(5, TimeUnit.SECONDS));
+
+        // Assert: the failed future may complete after get() returned.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (listAppender.getMessages().size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        List<String> messages = listAppender.getMessages();
+        assertEquals("Done-x", result);
+        assertEquals(2, messages.size(), "Expected 1 log message per completed future: " + messages);
+        String logMessage = messages.get(0);
+        assertTrue(logMessage.startsWith("Method 'asyncLog' | Params: [x, 1] | Return: Done-x | Duration: "),
+                "The value of the future should be logged: " + logMessage);
+        double millis = Double.parseDouble(logMessage.replaceAll(".*Duration: ([0-9.]+)ms.*", "$1"));
+        assertTrue(millis >= 50, "The duration should run until completion: " + logMessage);
+        assertTrue(logMessage.endsWith("| Thread: LogCall-Completer"), "The completing thread should be logged: " + logMessage);
+        assertTrue(messages.get(1).startsWith("Method 'asyncFailLog' | Threw Exception: IllegalStateException"),
+                "The exception of the future should be logged: " + messages.get(1));
+    }
+
+    @Test
+    void testSpans_trackNestedCallsAndMergeTheTree() {
+        // Arrange
+        LogCallSite outer = wovenSite("simpleLog", "(Ljava/lang/String;I)Ljava/lang/String;");
+        LogCallSite inner = wovenSite("debugLog", "(J)J");
+        LogCallSpans.Stack stack = new LogCallSpans.Stack(true);
+
+        // Act: outer (10ms) calls inner twice (3ms and 2ms).
+        stack.push(outer);
+        stack.push(inner);
+        LogCallSpan first = stack.pop(3_000_000L);
+        long firstId = first.getSpanId();
+        long firstParent = first.getParentId();
+        stack.push(inner);
+        LogCallSpan second = stack.pop(2_000_000L);
+        long secondId = second.getSpanId();
+        LogCallSpan root = stack.pop(10_000_000L);
+        StringBuilder tree = new StringBuilder();
+        stack.appendTree(tree, 10_000_000L);
+
+        // Assert
+        assertEquals(0, root.getDepth(), "The outer call should be the root");
+        assertEquals(0, root.getParentId(), "The root should have no parent");
+        assertEquals(root.getSpanId(), firstParent, "Nested calls should point to their parent");
+        assertNotEquals(firstId, secondId, "Each call should get its own id");
+        assertEquals(5_000_000L, root.getSelfNanos(), "The self time should exclude the nested calls");
+        assertEquals(" | Duration: 10.000ms"
+                + "\n\tTestService.simpleLog x1 | Total: 10.000ms | Self: 5.000ms"
+                + "\n\t\tTestService.debugLog x2 | Total: 5.000ms | Self: 5.000ms", tree.toString(),
+                "Calls of the same method under the same parent should be merged");
+        assertNull(stack.pop(1L), "Popping an empty stack should be ignored");
+    }
+
+    @Test
+    void testStartup_ranksInitializersAndConstructors() {
+        // Act
+        new TestService.StartupBean();
+        new TestService.StartupBean();
+        assertThrows(ExceptionInInitializerError.class, () -> new TestService.StartupFailure());
+        StringBuilder report = new StringBuilder();
+        LogCallStartup.appendReport(report);
+
+        // Assert
+        String text = report.toString();
+        String initializers = text.substring(text.indexOf("\nSlowest type initializers:"), text.indexOf("\nSlowest constructors:"));
+        assertTrue(initializers.contains("\tcom.github.pourquoipas.logcall.TestService$StartupBean | Self: "),
+                "The type initializer should be ranked, got: " + text);
+        assertTrue(initializers.contains("\tcom.github.pourquoipas.logcall.TestService$StartupFailure | Self: "),
+                "A type initializer that throws should be ranked too, got: " + text);
+        double[] bean = startupTimes(text, "TestService$StartupBean x2");
+        double[] dependency = startupTimes(text, "TestService$StartupDependency x2");
+        double[] dependencyInitializer = startupTimes(text, "TestService$StartupDependency");
+        // The StartupBean constructors call the StartupDependency constructors, the first one after initializing
+        // StartupDependency: that is all the time the beans do not own.
+        assertEquals(dependency[1] + dependencyInitializer[1], bean[1] - bean[0], 0.003,
+                "The self time should exclude the nested calls, got: " + text);
+        assertEquals(dependency[0], dependency[1], 0.002, "A constructor without nested calls should own all its time, got: " + text);
+        assertTrue(text.contains("\nSelf time per package:\n\tcom.github.pourquoipas.logcall | "),
+                "The time should be summed per package, got: " + text);
+    }
+
+    /**
+     * @return The self and total milliseconds of a line of the startup report.
+     */
+    private static double[] startupTimes(String report, String line) {
+        Matcher matcher = Pattern.compile("\t" + Pattern.quote("com.github.pourquoipas.logcall." + line)
+                + " \\| Self: ([0-9.]+)ms \\| Total: ([0-9.]+)ms").matcher(report);
+        assertTrue(matcher.find(), "Expected the line " + line + ", got: " + report);
+        return new double[]{Double.parseDouble(matcher.group(1)), Double.parseDouble(matcher.group(2))};
+    }
+
+    @Test
+    void testSampling_skipsCallsOutsideTheSampleAndRate() {
+        // Arrange
+        TestService service = new TestService();
+        LogCallRateLimiter limiter = new LogCallRateLimiter(2);
+
+        // Act
+        for (int i = 0; i < 10; i++) {
+            service.neverSampledLog();
+        }
+        service.rateLimitedLog();
+
+        // Assert
+        assertEquals(1, listAppender.getMessages().size(), "Only the rate limited method should log: " + listAppender.getMessages());
+        assertTrue(listAppender.getMessages().get(0).contains("Method 'rateLimitedLog'"), "Log message should contain method name");
+
+        assertTrue(limiter.tryAcquire(100), "First call of the second should pass");
+        assertTrue(limiter.tryAcquire(100), "Second call of the second should pass");
+        assertFalse(limiter.tryAcquire(100), "Third call of the second should be limited");
+        assertTrue(limiter.tryAcquire(101), "The budget should be restored in the next second");
+    }
+
+    @Test
+    void testSlowerThan_logsOnlySlowCallsAtEscalatedLevel() throws InterruptedException {
+        // Arrange
+        TestService service = new TestService();
+
+        // Act
+        service.slowLog(0);
+        service.slowLog(60);
+
+        // Assert
+        assertEquals(1, listAppender.getMessages().size(), "Only the slow call should be logged: " + listAppender.getMessages());
+        String logMessage = listAppender.getMessages().get(0);
+        assertTrue(logMessage.contains("Method 'slowLog' | Params: [60]"), "Log message should contain the slow call: " + logMessage);
+        assertTrue(logMessage.matches(".*\\| Duration: \\d+\\.\\d{3}ms"), "Duration should have sub-millisecond precision: " + logMessage);
+        assertEquals(Level.WARN, listAppender.getLevels().get(0), "Slow calls should be logged at the escalated level");
+    }
+
+    @Test
+    void testAggregate_logsPeriodicSummaryInsteadOfCalls() throws Exception {
+        // Arrange
+        TestService service = new TestService();
+
+        // Act
+        for (int i = 0; i < 10; i++) {
+            boolean fail = i % 5 == 0;
+            try {
+                service.aggregatedLog(fail);
+            } catch (IllegalStateException e) {
+                assertTrue(fail, "Only the failing calls should throw");
+            }
+        }
+
+        // Assert
+        assertTrue(listAppender.getMessages().isEmpty(), "Aggregated calls should not be logged one by one");
+        LogCallAggregator.report();
+        assertEquals(1, listAppender.getMessages().size(), "Expected 1 summary line: " + listAppender.getMessages());
+        String logMessage = listAppender.getMessages().get(0);
+        assertTrue(logMessage.startsWith("Method 'aggregatedLog' | Calls: 10 | Errors: 2 | Min: "), "Summary should contain count and errors: " + logMessage);
+        assertTrue(logMessage.contains("| P99.9: "), "Summary should contain percentiles: " + logMessage);
+        assertTrue(logMessage.contains("| Since last report: ") && !logMessage.contains("Interval"),
+                "A manual report should not claim the configured interval: " + logMessage);
+
+        ObjectName name = new ObjectName("com.github.pourquoipas.logcall:type=Histogram,class=" + TestService.class.getName()
+                + ",method=" + ObjectName.quote("aggregatedLog(Z)V"));
+        assertEquals(10L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Count"), "The MBean should expose the last interval");
+    }
+
+    @Test
+    void testHistogram_percentilesWithinPrecision() {
+        // Arrange
+        LogCallHistogram histogram = new LogCallHistogram();
+
+        // Act
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1_000, false);
+        }
+        LogCallHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+
+        // Assert
+        assertEquals(100_000, snapshot.getCount());
+        assertEquals(1_000, snapshot.getMin());
+        assertEquals(100_000_000, snapshot.getMax());
+        assertEquals(50_000_000, snapshot.getValueAtPercentile(50), 50_000_000 * 0.032);
+        assertEquals(99_000_000, snapshot.getValueAtPercentile(99), 99_000_000 * 0.032);
+        assertEquals(0, histogram.snapshotAndReset().getCount(), "The next interval should start empty");
+    }
+
+    @Test
+    void testHistogram_minAndMaxStayWithinTheSnapshottedCounts() {
+        // Arrange: one call of 1000ns, whose min and max were reset concurrently (missing) or leaked from
+        // another interval.
+        long[] counts = new long[LogCallHistogram.indexOf(Long.MAX_VALUE) + 1];
+        int bucket = LogCallHistogram.indexOf(1_000);
+        counts[bucket] = 1;
+
+        // Act
+        LogCallHistogram.Snapshot missing = new LogCallHistogram.Snapshot(counts, 1, 0, Long.MAX_VALUE, 0);
+        LogCallHistogram.Snapshot leaked = new LogCallHistogram.Snapshot(counts, 1, 0, 5, 1_000_000);
+        LogCallHistogram.Snapshot exact = new LogCallHistogram.Snapshot(counts, 1, 0, 1_000, 1_000);
+
+        // Assert
+        for (LogCallHistogram.Snapshot snapshot : Arrays.asList(missing, leaked)) {
+            assertTrue(snapshot.getMin() >= LogCallHistogram.lowestValueAt(bucket) && snapshot.getMin() <= 1_000 * 1.032,
+                    "The min should come from the counted bucket: " + snapshot.getMin());
+            assertTrue(snapshot.getMax() >= LogCallHistogram.lowestValueAt(bucket) && snapshot.getMax() <= 1_000 * 1.032,
+                    "The max should come from the counted bucket: " + snapshot.getMax());
+            assertTrue(snapshot.getMin() <= snapshot.getMax());
+        }
+        assertEquals(1_000, exact.getMin(), "An exact min should be kept");
+        assertEquals(1_000, exact.getMax(), "An exact max should be kept");
+    }
+
+    @Test
+    void testWeaver_constantPoolPreScan() throws Exception {
+        // Arrange
+        byte[] annotated = readClassFile(TestService.class);
+        byte[] notAnnotated = readClassFile(LogCallHistogram.class);
+
+        // Act & Assert
+        assertTrue(LogCallClassWeaver.mayUseLogCall(annotated), "A class using @LogCall should be a candidate");
+        assertFalse(LogCallClassWeaver.mayUseLogCall(notAnnotated), "A class without @LogCall should be skipped");
+        assertTrue(LogCallClassWeaver.mayUseLogCall(new byte[]{1, 2, 3}), "A malformed class should be left to ByteBuddy");
+    }
+
+    @Test
+    void testWeaver_skipsUnchangedClassesAndReweavesChangedOnes(@TempDir Path directory) throws Exception {
+        // Arrange
+        String className = "com.github.pourquoipas.logcall.IncrementalTarget";
+        Path classes = directory.resolve("classes");
+        Path target = classes.resolve(className.replace('.', '/') + ".class");
+        Path plain = target.resolveSibling("LogCallHistogram.class");
+        Files.createDirectories(target.getParent());
+        Files.write(target, unwovenClass(className));
+        Files.write(plain, readClassFile(LogCallHistogram.class));
+        byte[] changed = new ByteBuddy()
+                .subclass(Object.class)
+                .name(className)
+                .defineMethod("greet", String.class, Visibility.PUBLIC)
+                .withParameters(String.class)
+                .intercept(FixedValue.value("Bye"))
+                .annotateMethod(AnnotationDescription.Builder.ofType(LogCall.class).build())
+                .make()
+                .getBytes();
+
+        // Act & Assert: the first run weaves.
+        assertEquals(0, LogCallClassWeaver.weaveDirectory(classes));
+        byte[] woven = Files.readAllBytes(target);
+        assertFalse(Arrays.equals(unwovenClass(className), woven), "The annotated class should be woven");
+
+        // Act & Assert: nothing changed.
+        assertEquals(2, LogCallClassWeaver.weaveDirectory(classes), "Both classes should be skipped");
+        assertArrayEquals(woven, Files.readAllBytes(target));
+
+        // Act & Assert: the compiler rewrote one class.
+        Files.write(target, changed);
+        assertEquals(1, LogCallClassWeaver.weaveDirectory(classes), "Only the unchanged class should be skipped");
+        byte[] rewoven = Files.readAllBytes(target);
+        assertFalse(Arrays.equals(changed, rewoven), "The changed class should be woven again");
+        assertNull(LogCallClassWeaver.weaveClass(className, TypePool.Default.of(new ClassFileLocator.Compound(
+                        ClassFileLocator.Simple.of(className, rewoven), ClassFileLocator.ForClassLoader.of(getClass().getClassLoader()))),
+                ClassFileLocator.Simple.of(className, rewoven), new ByteBuddy()), "The changed class should be marked as woven");
+
+        // Act & Assert: a manifest written by another version of LogCall is ignored.
+        Path manifest = directory.resolve("classes.logcall-weaver");
+        List<String> lines = new ArrayList<>(Files.readAllLines(manifest, StandardCharsets.UTF_8));
+        lines.set(0, "# LogCall weaver manifest v2 library=0000000000000000");
+        Files.write(manifest, lines, StandardCharsets.UTF_8);
+        assertEquals(0, LogCallClassWeaver.weaveDirectory(classes), "Every class should be processed again");
+        assertArrayEquals(rewoven, Files.readAllBytes(target), "A woven class should not be woven twice");
+    }
+
+    @Test
+    void testAgent_weavesOnLoadAndCaches(@TempDir Path cacheDirectory) throws Exception {
+        // Arrange
+        String className = "com.github.pourquoipas.logcall.AgentTarget";
+        byte[] original = unwovenClass(className);
+        LoggerConfig loggerConfig = new LoggerConfig(className, Level.ALL, false);
+        loggerConfig.addAppender(listAppender, Level.ALL, null);
+        ctx.getConfiguration().addLogger(className, loggerConfig);
+        ctx.updateLoggers();
+        LogCallAgent agent = new LogCallAgent(cacheDirectory);
+
+        // Act
+        byte[] woven = agent.transform(getClass().getClassLoader(), className.replace('.', '/'), null, null, original);
+        byte[] cached = agent.transform(getClass().getClassLoader(), className.replace('.', '/'), null, null, original);
+        Class<?> type = new ByteArrayClassLoader(getClass().getClassLoader(), Collections.singletonMap(className, woven))
+                .loadClass(className);
+        Object result = type.getMethod("greet", String.class).invoke(type.getConstructor().newInstance(), "World");
+
+        // Assert
+        assertNotNull(woven, "The annotated class should be woven");
+        assertArrayEquals(woven, cached, "The second load should be served from the cache");
+        assertTrue(Files.exists(cacheDirectory.resolve(LogCallClassWeaver.hash(original) + ".class")), "The woven class should be cached");
+        assertNull(agent.transform(getClass().getClassLoader(), "java/lang/Object", null, null, readClassFile(LogCallHistogram.class)),
+                "A class without @LogCall should be left untouched");
+        assertEquals("Hello", result);
+        assertEquals(1, listAppender.getMessages().size(), "Expected 1 log message: " + listAppender.getMessages());
+        assertTrue(listAppender.getMessages().get(0).startsWith("Method 'greet' | Return: Hello"), listAppender.getMessages().get(0));
+    }
+
+    @Test
+    void testWeaver_jarToJar(@TempDir Path directory) throws Exception {
+        // Arrange
+        String className = "com.github.pourquoipas.logcall.JarTarget";
+        byte[] original = unwovenClass(className);
+        byte[] resource = "not a class".getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(resource);
+        Path inputJar = directory.resolve("input.jar");
+        Path outputJar = directory.resolve("output.jar");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(inputJar))) {
+            out.putNextEntry(new ZipEntry(className.replace('.', '/') + ".class"));
+            out.write(original);
+            ZipEntry stored = new ZipEntry("resource.txt");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(resource.length);
+            stored.setCrc(crc.getValue());
+            out.putNextEntry(stored);
+            out.write(resource);
+            out.putNextEntry(new ZipEntry("META-INF/SIGNER.SF"));
+            out.write(resource);
+        }
+
+        PrintStream err = System.err;
+        ByteArrayOutputStream warnings = new ByteArrayOutputStream();
+
+        // Act
+        System.setErr(new PrintStream(warnings, true, "UTF-8"));
+        try {
+            LogCallClassWeaver.weaveJar(inputJar, outputJar);
+        } finally {
+            System.setErr(err);
+        }
+
+        // Assert
+        String warning = new String(warnings.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(warning.contains(inputJar.toAbsolutePath() + " is signed") && warning.contains("META-INF/SIGNER.SF"),
+                "Dropping the signature should be reported with the jar: " + warning);
+        try (ZipFile woven = new ZipFile(outputJar.toFile())) {
+            ZipEntry classEntry = woven.getEntry(className.replace('.', '/') + ".class");
+            byte[] wovenBytes = readAll(woven.getInputStream(classEntry));
+            assertFalse(Arrays.equals(original, wovenBytes), "The annotated class should be woven");
+            assertNull(LogCallClassWeaver.weaveClass(className, TypePool.Default.of(ClassFileLocator.Simple.of(className, wovenBytes)),
+                    ClassFileLocator.Simple.of(className, wovenBytes), new ByteBuddy()), "The woven class should carry the marker");
+            ZipEntry resourceEntry = woven.getEntry("resource.txt");
+            assertEquals(ZipEntry.STORED, resourceEntry.getMethod(), "Stored entries should stay stored");
+            assertArrayEquals(resource, readAll(woven.getInputStream(resourceEntry)));
+            assertNull(woven.getEntry("META-INF/SIGNER.SF"), "Signature files should be dropped");
+        }
+    }
+
+    /**
+     * @return The site the weaver created for a method of {@link TestService}, as used by its woven code.
+     */
+    private static LogCallSite wovenSite(String methodName, String descriptor) {
+        new TestService();
+        LogCallSite site = LogCallControl.find(TestService.class, methodName, descriptor);
+        assertNotNull(site, "TestService." + methodName + descriptor + " should be woven");
+        return site;
+    }
+
+    /**
+     * Generates an unwoven class with an annotated method, as found in a prebuilt jar.
+     */
+    private static byte[] unwovenClass(String className) {
+        return new ByteBuddy()
+                .subclass(Object.class)
+                .name(className)
+                .defineMethod("greet", String.class, Visibility.PUBLIC)
+                .withParameters(String.class)
+                .intercept(FixedValue.value("Hello"))
+                .annotateMethod(AnnotationDescription.Builder.ofType(LogCall.class)
+                        .define("level", LogLevel.INFO)
+                        .define("logReturn", true)
+                        .build())
+                .make()
+                .getBytes();
+    }
+
+    static void callAtDepth(int depth, Runnable call) {
+        if (depth == 0) {
+            call.run();
+        } else {
+            callAtDepth(depth - 1, call);
+        }
+    }
+
+    private static byte[] readClassFile(Class<?> type) throws Exception {
+        return readAll(type.getResourceAsStream(type.getSimpleName() + ".class"));
+    }
+
+    private static byte[] readAll(InputStream input) throws Exception {
+        try (InputStream in = input) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
 }
@@ -10,6 +10,11 @@
  */
 package com.github.pourquoipas.logcall;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 // Classe fittizia su cui testare l'annotazione
 public class TestService {
 
@@ -42,5 +47,114 @@ public class TestService {
     public String customLog(String p1) {
         return "CustomReturn";
     }
-}
 
+    @LogCall(customLog = "{className}.{methodName}({param[1]}, {name}) -> {return} {unknown} {param[9]} [{params}]")
+    public int customLogPlaceholders(String name, int count) {
+        return count * 2;
+    }
+
+    @LogCall(customLog = "{methodName}({params}) -> {return}")
+    public void noArgs() {
+        // nothing to capture
+    }
+
+    @LogCall(level = LogLevel.DEBUG, logParameters = true, logReturn = true)
+    public long debugLog(long value) {
+        return value + 1;
+    }
+
+    @LogCall(level = LogLevel.INFO, logParameters = true)
+    public void nestedLog(Object value) {
+        // do nothing
+    }
+
+    @LogCall(level = LogLevel.INFO, sampleRate = 0.0)
+    public void neverSampledLog() {
+        // do nothing
+    }
+
+    @LogCall(level = LogLevel.INFO, maxPerSecond = 1000)
+    public void rateLimitedLog() {
+        // do nothing
+    }
+
+    @LogCall(level = LogLevel.DEBUG, logParameters = true, slowerThan = 30, slowLevel = LogLevel.WARN)
+    public void slowLog(long sleepMillis) throws InterruptedException {
+        Thread.sleep(sleepMillis);
+    }
+
+    @LogCall(level = LogLevel.INFO, logParameters = true, aggregate = true)
+    public void aggregatedLog(boolean fail) {
+        if (fail) {
+            throw new IllegalStateException("Aggregated failure");
+        }
+    }
+
+    @LogCall(level = LogLevel.INFO, logParameters = true, logReturn = true)
+    public List<Integer> renderedLog(byte[] data, String text) {
+        List<Integer> result = new ArrayList<>();
+        for (int i = 0; i < data.length; i++) {
+            result.add(i);
+        }
+        return result;
+    }
+
+    @LogCall(level = LogLevel.INFO, logParameters = true, logReturn = true)
+    public double primitiveLog(boolean flag, byte b, char c, short s, int i, long l, float f, double d) {
+        return l * d;
+    }
+
+    // Completed by hand by the tests, so that asyncLog completes after it returned, on a thread chosen by the test.
+    final CompletableFuture<String> pending = new CompletableFuture<>();
+
+    @LogCall(level = LogLevel.INFO, logParameters = true, logReturn = true)
+    public CompletableFuture<String> asyncLog(String name, int attempt) {
+        return pending.thenApply(value -> value + "-" + name);
+    }
+
+    @LogCall(level = LogLevel.INFO, logReturn = true)
+    public CompletionStage<String> asyncFailLog() {
+        return CompletableFuture.supplyAsync(() -> {
+            throw new IllegalStateException("Async failure");
+        });
+    }
+
+    // Timed at startup: the test build weaves this class with logcall.startup.packages, see pom.xml.
+    static class StartupBean {
+
+        static {
+            sleep(20);
+        }
+
+        private final StartupDependency dependency;
+
+        StartupBean() {
+            sleep(5);
+            dependency = new StartupDependency();
+        }
+    }
+
+    static class StartupFailure {
+
+        private static final int VALUE = fail();
+
+        private static int fail() {
+            throw new IllegalStateException("Startup failure");
+        }
+    }
+
+    static class StartupDependency {
+
+        StartupDependency() {
+            sleep(5);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}